@@ -0,0 +1,565 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Differential fuzzer for the optimized import paths.
+ *
+ * Feeds random lines and readings (quotes, separators, kana, kanji, symbols, surrogate pairs,
+ * empty fields) to the tokenizer, the reading classifier and Card(Kanji), and checks that the
+ * output is exactly what the original implementations in LegacyImport produce. Then syncs
+ * random files into in-memory decks with random batch sizes, and checks that the decks are the
+ * same as when adding one card per batch. Does the same with new SQLite collections, against the
+ * original one-card-per-transaction writer, and checks that the notes and cards rows are the
+ * same. Finally, times both implementations on the same inputs, so that every speedup comes with
+ * evidence that nothing changed. Needs a JDBC SQLite driver on the classpath, like
+ * Kanji2AnkiCli.
+ *
+ * Exits with status 1, after printing the input, at the first difference.
+ */
+public class ImportFuzzer {
+    private static final String USAGE = "usage: ImportFuzzer [--iterations <n>] [--seed <n>]";
+
+    private static final int DEFAULT_ITERATIONS = 200000;
+    private static final int WRITER_ROUNDS = 20;
+    private static final int WRITER_LINES = 500;
+    private static final int BENCHMARK_LINES = 100000;
+    private static final int BENCHMARK_RUNS = 5;
+
+    // Just enough of an Anki collection for a sync: the deck, and a basic model to add to.
+    private static final String DECK_ID = "1368000000000";
+    private static final String MODEL_ID = "1342697561419";
+    private static final String[] COLLECTION_SCHEMA = {
+        "create table col (id integer primary key, crt integer not null, mod integer not null," +
+                " scm integer not null, ver integer not null, dty integer not null," +
+                " usn integer not null, ls integer not null, conf text not null," +
+                " models text not null, decks text not null, dconf text not null," +
+                " tags text not null);",
+        "create table notes (id integer primary key, guid text not null, mid integer not null," +
+                " mod integer not null, usn integer not null, tags text not null," +
+                " flds text not null, sfld integer not null, csum integer not null," +
+                " flags integer not null, data text not null);",
+        "create table cards (id integer primary key, nid integer not null," +
+                " did integer not null, ord integer not null, mod integer not null," +
+                " usn integer not null, type integer not null, queue integer not null," +
+                " due integer not null, ivl integer not null, factor integer not null," +
+                " reps integer not null, lapses integer not null, left integer not null," +
+                " odue integer not null, odid integer not null, flags integer not null," +
+                " data text not null);",
+        "create table graves (usn integer not null, oid integer not null," +
+                " type integer not null);",
+        "insert into col values (1, 0, 0, 0, 11, 0, 0, 0, '{}'," +
+                " '{\"" + MODEL_ID + "\": {\"id\": " + MODEL_ID + ", \"name\": \"Basic\"," +
+                " \"type\": 0, \"tmpls\": [{\"name\": \"Card 1\"}]}}'," +
+                " '{\"" + DECK_ID + "\": {\"id\": " + DECK_ID + ", \"name\": \"fuzz\"}}'," +
+                " '{}', '{}');",
+    };
+
+    // Columns written by both writers that don't depend on the IDs, the clock or random GUIDs.
+    private static final String SQL_SELECT_ROWS =
+            "select notes.flds, notes.sfld, notes.csum, cards.due from notes join cards" +
+            " on cards.nid = notes.id order by cards.due, cards.id;";
+
+    private static final String ASCII = "abcxyzABCXYZ019 -.!?~";
+    private static final String SYMBOLS = "・、。「」（）ー〜々";
+
+    private final Random mRandom;
+    private int mChecks;
+    private int mSyncedCards;
+    private int mSink;  // Results of the benchmarks, so that the JIT can't skip them.
+
+    private ImportFuzzer(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    // Input generation.
+
+    private int codePointIn(int first, int last) {
+        return first + mRandom.nextInt(last - first + 1);
+    }
+
+    private void appendRandomChar(StringBuilder sb, char separator) {
+        switch (mRandom.nextInt(12)) {
+            case 0:
+                sb.append(ASCII.charAt(mRandom.nextInt(ASCII.length())));
+                break;
+            case 1:
+                sb.append(SYMBOLS.charAt(mRandom.nextInt(SYMBOLS.length())));
+                break;
+            case 2:
+                sb.append('"');
+                break;
+            case 3:
+                sb.append(mRandom.nextBoolean() ? separator : ',');
+                break;
+            case 4:
+                sb.append(' ');
+                break;
+            case 5:
+            case 6:
+                sb.appendCodePoint(codePointIn(0x3041, 0x3096));  // Hiragana.
+                break;
+            case 7:
+            case 8:
+                sb.appendCodePoint(codePointIn(0x30a1, 0x30fa));  // Katakana.
+                break;
+            case 9:
+                sb.appendCodePoint(codePointIn(0x4e00, 0x9fff));  // Kanji.
+                break;
+            case 10:
+                // Surrogate pairs: CJK Extension B, or emoji.
+                sb.appendCodePoint(mRandom.nextBoolean() ?
+                        codePointIn(0x20000, 0x2a6df) : codePointIn(0x1f600, 0x1f64f));
+                break;
+            default:
+                // Anywhere in the BMP outside the surrogates, including combining marks.
+                int c = codePointIn(0x80, 0xfffd);
+                sb.append((char) ((c >= 0xd800 && c <= 0xdfff) ? c - 0x800 : c));
+                break;
+        }
+    }
+
+    private String randomText(int maxLength, char separator) {
+        StringBuilder sb = new StringBuilder();
+        int length = mRandom.nextInt(maxLength + 1);
+        for (int i = 0; i < length; i++) {
+            appendRandomChar(sb, separator);
+        }
+        return sb.toString();
+    }
+
+    /** Returns readings like those in exports: kana words, some prefixed or suffixed. */
+    private String randomReadings() {
+        if (mRandom.nextInt(10) == 0) {
+            return randomText(12, ' ');
+        }
+        StringBuilder sb = new StringBuilder();
+        int words = mRandom.nextInt(5);
+        for (int i = 0; i < words; i++) {
+            if (i > 0 || mRandom.nextInt(8) == 0) {
+                sb.append(mRandom.nextInt(8) == 0 ? "  " : " ");
+            }
+            if (mRandom.nextInt(6) == 0) {
+                sb.append(mRandom.nextBoolean() ? '-' : SYMBOLS.charAt(0));
+            }
+            boolean katakana = mRandom.nextBoolean();
+            int length = 1 + mRandom.nextInt(4);
+            for (int j = 0; j < length; j++) {
+                if (mRandom.nextInt(10) == 0) {
+                    appendRandomChar(sb, ' ');
+                } else {
+                    sb.appendCodePoint(katakana ?
+                            codePointIn(0x30a1, 0x30fa) : codePointIn(0x3041, 0x3096));
+                }
+            }
+            if (mRandom.nextInt(6) == 0) {
+                sb.append(mRandom.nextBoolean() ? ".る" : "-");
+            }
+        }
+        if (mRandom.nextInt(8) == 0) {
+            sb.append(' ');
+        }
+        return sb.toString();
+    }
+
+    /** Returns a line of mostly well-formed fields, some quoted, some empty. */
+    private String randomLine(char separator) {
+        int fields = (mRandom.nextInt(4) == 0) ? mRandom.nextInt(8) : 5;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields; i++) {
+            if (i > 0) {
+                sb.append(separator);
+            }
+            String field;
+            if (mRandom.nextInt(10) == 0) {
+                field = "";
+            } else if (i == 2) {
+                field = randomReadings();
+            } else if (i == 4 && mRandom.nextBoolean()) {
+                field = Long.toString(1368691979999L - mRandom.nextInt(1000000));
+            } else {
+                field = randomText(6, separator);
+            }
+            boolean quoted = mRandom.nextInt(3) != 0;
+            if (quoted) {
+                sb.append('"');
+            }
+            sb.append(field);
+            if (quoted && mRandom.nextInt(20) != 0) {
+                sb.append('"');
+            }
+        }
+        return sb.toString();
+    }
+
+    // Checks.
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c < 0x7f && c != '\\') {
+                sb.append(c);
+            } else {
+                sb.append(String.format("\\u%04x", (int) c));
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static String escape(List<String> list) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < list.size(); i++) {
+            sb.append(i > 0 ? ", " : "").append(escape(list.get(i)));
+        }
+        return sb.append(']').toString();
+    }
+
+    private static void fail(String what, String input, String expected, String actual) {
+        System.out.println("MISMATCH in " + what);
+        System.out.println("  input:    " + escape(input));
+        System.out.println("  expected: " + expected);
+        System.out.println("  actual:   " + actual);
+        System.exit(1);
+    }
+
+    private void checkEqual(String what, String input, String expected, String actual) {
+        mChecks++;
+        if (!expected.equals(actual)) {
+            fail(what, input, escape(expected), escape(actual));
+        }
+    }
+
+    private void checkLine(String line, char separator) {
+        List<String> expected = LegacyImport.lineToFieldList(line, separator);
+        List<String> actual = KanjiRecognizerImporter.lineToFieldList(line, separator);
+        mChecks++;
+        if (!expected.equals(actual)) {
+            fail("lineToFieldList('" + separator + "')", line, escape(expected), escape(actual));
+        }
+
+        if (expected.size() != 5) {
+            return;
+        }
+        String[] readings = LegacyImport.parseReadings(expected.get(2));
+        String expectedBack = LegacyImport.cardBack(expected.get(1), readings, expected.get(3));
+        Card card = new Card(new Kanji(new ArrayList<String>(actual)));
+        checkEqual("Card(Kanji) front", line, expected.get(1), card.getFront());
+        checkEqual("Card(Kanji) back", line, expectedBack, card.getBack());
+    }
+
+    private void checkReadings(String readings) {
+        String[] expected = LegacyImport.parseReadings(readings);
+        Kanji kanji = new Kanji("字", readings, "");
+        checkEqual("parseReadings on", readings, expected[0], kanji.getOnyomi());
+        checkEqual("parseReadings kun", readings, expected[1], kanji.getKunyomi());
+        checkEqual("parseReadings unknown", readings, expected[2], kanji.getUnknownReadings());
+    }
+
+    private List<Card> syncIntoMemory(File file, int batchSize) throws SyncException {
+        InMemoryCollectionStore store = new InMemoryCollectionStore();
+        Deck deck = store.addDeck("fuzz");
+        SyncEngine engine = new SyncEngine(store);
+        engine.setImportFile(file.getPath());
+        engine.setCollectionFile("memory");
+        engine.setDeckName("fuzz");
+        engine.setBatchSize(batchSize);
+        engine.run();
+        return store.getCardsPage(deck.getID(), Long.MAX_VALUE, WRITER_LINES);
+    }
+
+    /**
+     * Adds one card per transaction with LegacyImport's writer, on the store's own connection.
+     */
+    private static class SingleInsertStore extends JdbcCollectionStore {
+        private LegacyImport.SingleInsertWriter mWriter;
+
+        @Override
+        public void open(String filename) {
+            super.open(filename);
+            mWriter = new LegacyImport.SingleInsertWriter(getConnection());
+        }
+
+        @Override
+        public boolean addCards(Deck deck, String modelID, List<Card> cards,
+                ImportSession session) {
+            try {
+                for (Card card : cards) {
+                    if (!mWriter.addCard(deck, modelID, card.getFront(), card.getBack())) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (SQLException e) {
+                SyncLog.e("SingleInsertStore", "Error adding cards: " + e);
+                return false;
+            }
+        }
+    }
+
+    private static void createCollection(File file) throws SQLException {
+        Connection db = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+        try {
+            Statement statement = db.createStatement();
+            try {
+                for (String sql : COLLECTION_SCHEMA) {
+                    statement.executeUpdate(sql);
+                }
+            } finally {
+                statement.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Syncs the file into a new collection, and returns the notes and cards rows it added.
+     */
+    private static List<String> syncIntoCollection(File file, JdbcCollectionStore store,
+            int batchSize) throws IOException, SQLException, SyncException {
+        File collection = File.createTempFile("kanji2anki-fuzz", ".anki2");
+        try {
+            createCollection(collection);
+            SyncEngine engine = new SyncEngine(store);
+            engine.setImportFile(file.getPath());
+            engine.setCollectionFile(collection.getPath());
+            engine.setDeckName("fuzz");
+            engine.setBatchSize(batchSize);
+            engine.run();
+
+            List<String> rows = new ArrayList<String>();
+            Connection db = DriverManager.getConnection("jdbc:sqlite:" + collection.getPath());
+            try {
+                Statement statement = db.createStatement();
+                try {
+                    ResultSet rs = statement.executeQuery(SQL_SELECT_ROWS);
+                    while (rs.next()) {
+                        rows.add(rs.getString(1) + Card.FIELD_SEPARATOR + rs.getString(2) +
+                                Card.FIELD_SEPARATOR + rs.getLong(3) + " due " + rs.getLong(4));
+                    }
+                } finally {
+                    statement.close();
+                }
+            } finally {
+                db.close();
+            }
+            return rows;
+        } finally {
+            collection.delete();
+        }
+    }
+
+    /**
+     * Checks that the batched writer writes the same rows as the original one, in the same due
+     * order.
+     */
+    private void checkCollectionWriter(File file, int batchSize)
+            throws IOException, SQLException, SyncException {
+        List<String> expected = syncIntoCollection(file, new SingleInsertStore(), 1);
+        List<String> actual = syncIntoCollection(file, new JdbcCollectionStore(), batchSize);
+        mChecks++;
+        if (expected.size() != actual.size()) {
+            fail("SQLite batch size " + batchSize, file.getPath(), expected.size() + " rows",
+                    actual.size() + " rows");
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            checkEqual("SQLite batch size " + batchSize + " row", "row " + i + " of " +
+                    file.getPath(), expected.get(i), actual.get(i));
+        }
+    }
+
+    /**
+     * Checks that batching doesn't change which cards are added, or in what order.
+     */
+    private void checkWriter(File file) throws IOException, SQLException, SyncException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            for (int i = 0; i < WRITER_LINES; i++) {
+                String line = randomLine(',');
+                // Keep the file readable: the sync stops at malformed rows.
+                if (LegacyImport.lineToFieldList(line, ',').size() == 5 &&
+                        line.indexOf('\n') == -1 && line.indexOf('\r') == -1) {
+                    out.write(line);
+                    out.write('\n');
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        List<Card> expected = syncIntoMemory(file, 1);
+        int batchSize = 2 + mRandom.nextInt(200);
+        List<Card> actual = syncIntoMemory(file, batchSize);
+        mSyncedCards += expected.size();
+        mChecks++;
+        if (expected.size() != actual.size()) {
+            fail("batch size " + batchSize, file.getPath(), expected.size() + " cards",
+                    actual.size() + " cards");
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            String input = "card " + i + " of " + file.getPath();
+            checkEqual("batch size " + batchSize + " front", input,
+                    expected.get(i).getFront(), actual.get(i).getFront());
+            checkEqual("batch size " + batchSize + " back", input,
+                    expected.get(i).getBack(), actual.get(i).getBack());
+        }
+        checkCollectionWriter(file, batchSize);
+    }
+
+    // Benchmarks.
+
+    private static double rate(int count, long nanos) {
+        return count * 1e9 / nanos;
+    }
+
+    private static void report(String what, int count, long legacyNanos, long optimizedNanos) {
+        System.out.println(String.format(
+                "%-16s legacy %9.0f/s  optimized %9.0f/s  speedup %.2fx",
+                what, rate(count, legacyNanos), rate(count, optimizedNanos),
+                (double) legacyNanos / optimizedNanos));
+    }
+
+    /**
+     * Times both implementations on the same lines. Runs several times and keeps the fastest
+     * run of each, so that JIT compilation and GC pauses don't count.
+     */
+    private void benchmark() {
+        List<String> lines = new ArrayList<String>(BENCHMARK_LINES);
+        List<String> readings = new ArrayList<String>(BENCHMARK_LINES);
+        while (lines.size() < BENCHMARK_LINES) {
+            String line = randomLine(',');
+            if (LegacyImport.lineToFieldList(line, ',').size() == 5) {
+                lines.add(line);
+                readings.add(randomReadings());
+            }
+        }
+
+        long[] best = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE,
+                Long.MAX_VALUE, Long.MAX_VALUE};
+        int sink = 0;
+        for (int run = 0; run < BENCHMARK_RUNS; run++) {
+            long start = System.nanoTime();
+            for (String line : lines) {
+                sink += LegacyImport.lineToFieldList(line, ',').size();
+            }
+            long t1 = System.nanoTime();
+            for (String line : lines) {
+                sink += KanjiRecognizerImporter.lineToFieldList(line, ',').size();
+            }
+            long t2 = System.nanoTime();
+            for (String reading : readings) {
+                sink += LegacyImport.parseReadings(reading)[0].length();
+            }
+            long t3 = System.nanoTime();
+            for (String reading : readings) {
+                sink += new Kanji("字", reading, "").getOnyomi().length();
+            }
+            long t4 = System.nanoTime();
+            for (String line : lines) {
+                List<String> fields = LegacyImport.lineToFieldList(line, ',');
+                sink += LegacyImport.cardBack(fields.get(1),
+                        LegacyImport.parseReadings(fields.get(2)), fields.get(3)).length();
+            }
+            long t5 = System.nanoTime();
+            for (String line : lines) {
+                sink += new Card(new Kanji(KanjiRecognizerImporter.lineToFieldList(line, ',')))
+                        .getBack().length();
+            }
+            long t6 = System.nanoTime();
+            mSink += sink;
+            long[] times = {t1 - start, t2 - t1, t3 - t2, t4 - t3, t5 - t4, t6 - t5};
+            for (int i = 0; i < times.length; i++) {
+                best[i] = Math.min(best[i], times[i]);
+            }
+        }
+
+        System.out.println("Throughput (" + BENCHMARK_LINES + " lines, best of " +
+                BENCHMARK_RUNS + " runs):");
+        report("tokenizer", BENCHMARK_LINES, best[0], best[1]);
+        report("readings", BENCHMARK_LINES, best[2], best[3]);
+        report("line to card", BENCHMARK_LINES, best[4], best[5]);
+    }
+
+    private void run(int iterations) throws IOException, SQLException, SyncException {
+        for (int i = 0; i < iterations; i++) {
+            checkLine(randomLine(','), ',');
+            checkLine(randomLine('\t'), '\t');
+            checkReadings(randomReadings());
+        }
+
+        File file = File.createTempFile("kanji2anki-fuzz", ".csv");
+        try {
+            for (int i = 0; i < WRITER_ROUNDS; i++) {
+                checkWriter(file);
+            }
+        } finally {
+            file.delete();
+        }
+        System.out.println("OK: " + mChecks + " checks, " + mSyncedCards + " cards synced");
+
+        benchmark();
+    }
+
+    private static void usage(String error) {
+        if (error != null) {
+            System.err.println(error);
+        }
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws IOException, SQLException, SyncException {
+        int iterations = DEFAULT_ITERATIONS;
+        long seed = System.currentTimeMillis();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--help")) {
+                usage(null);
+            }
+            if (!arg.equals("--iterations") && !arg.equals("--seed")) {
+                usage("Unknown option " + arg);
+            }
+            if (i + 1 >= args.length) {
+                usage("Missing value for " + arg);
+            }
+            String value = args[++i];
+            try {
+                if (arg.equals("--iterations")) {
+                    iterations = Integer.parseInt(value);
+                    if (iterations < 1) {
+                        usage("Invalid value for " + arg + ": '" + value + "'");
+                    }
+                } else {
+                    seed = Long.parseLong(value);
+                }
+            } catch (NumberFormatException e) {
+                usage("Invalid value for " + arg + ": '" + value + "'");
+            }
+        }
+        // Unknown readings are logged, and there are a lot of them.
+        SyncLog.setSink(new SyncLog.Sink() {
+            public void log(int level, String tag, String msg) {}
+        });
+        System.out.println("Seed " + seed + ", " + iterations + " iterations");
+        new ImportFuzzer(seed).run(iterations);
+    }
+}
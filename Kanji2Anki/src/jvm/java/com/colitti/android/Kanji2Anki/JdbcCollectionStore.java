@@ -0,0 +1,454 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+
+import static com.colitti.android.Kanji2Anki.AnkiSchema.*;
+
+/**
+ * Desktop equivalent of AnkiDroidSyncer. Reads and writes collection.anki2 files through a JDBC
+ * SQLite driver (e.g., org.xerial:sqlite-jdbc), which must be on the classpath.
+ */
+public class JdbcCollectionStore implements CollectionStore {
+    private static final String TAG = "JdbcCollectionStore";
+
+    private Connection mConnection;
+    private IdAllocator mIdAllocator;
+    private final Random mRandom = new Random();
+
+    private static CollectionException wrap(String message, SQLException e) {
+        return new CollectionException(message + ": " + e.getMessage(), e);
+    }
+
+    @Override
+    public void open(String filename) {
+        close();
+        try {
+            mConnection = DriverManager.getConnection("jdbc:sqlite:" + filename);
+            Statement statement = mConnection.createStatement();
+            try {
+                ResultSet rs = statement.executeQuery(SQL_MAX_ID);
+                mIdAllocator = new IdAllocator(rs.next() ? rs.getLong(1) : 0);
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw wrap("Can't open database '" + filename + "'", e);
+        }
+    }
+
+    @Override
+    public void openReadOnly(String filename) {
+        close();
+        // Connection.setReadOnly() can't be changed once the driver has opened the file, so ask
+        // the driver to open it read-only (SQLITE_OPEN_READONLY) in the first place.
+        Properties properties = new Properties();
+        properties.setProperty("open_mode", "1");
+        try {
+            mConnection = DriverManager.getConnection("jdbc:sqlite:" + filename, properties);
+        } catch (SQLException e) {
+            throw wrap("Can't open database '" + filename + "'", e);
+        }
+        mIdAllocator = null;
+    }
+
+    @Override
+    public void close() {
+        if (mConnection == null) {
+            return;
+        }
+        try {
+            mConnection.close();
+        } catch (SQLException e) {
+            SyncLog.w(TAG, "Error closing database: " + e);
+        }
+        mConnection = null;
+    }
+
+    /** The connection to the open collection, for ImportFuzzer's reference writer. */
+    Connection getConnection() {
+        return mConnection;
+    }
+
+    private JSONObject getConfKey(String column) throws JSONException {
+        try {
+            Statement statement = mConnection.createStatement();
+            try {
+                ResultSet rs = statement.executeQuery(
+                        "select " + column + " from " + TABLE_COL + " limit 1;");
+                if (!rs.next()) {
+                    throw new JSONException("No configuration found");
+                }
+                return new JSONObject(rs.getString(1));
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw wrap("Can't read " + column, e);
+        }
+    }
+
+    @Override
+    public Map<String,Deck> getDecks() throws JSONException {
+        Map<String,Deck> decks = new HashMap<String,Deck>();
+        JSONObject conf = getConfKey(COLUMN_DECKS);
+        Iterator<String> i = conf.keys();
+        while (i.hasNext()) {
+            String id = i.next();
+            Deck deck = new Deck(id, conf.getJSONObject(id));
+            decks.put(deck.getName(), deck);
+        }
+        return decks;
+    }
+
+    /**
+     * Same selection as AnkiDroidSyncer.getDefaultModelID(): the lowest integer ID of a basic
+     * model with a single template.
+     */
+    @Override
+    public String getDefaultModelID() throws JSONException {
+        JSONObject conf = getConfKey(COLUMN_MODELS);
+        Iterator<String> i = conf.keys();
+        long lowestValue = 0;
+        String lowestID = null;
+        while (i.hasNext()) {
+            String id = i.next();
+            long value;
+            try {
+                value = Long.parseLong(id);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            JSONObject model = conf.getJSONObject(id);
+            if (model.getJSONArray("tmpls").length() > 1 || model.getInt("type") != 0) {
+                continue;
+            }
+            if (lowestID == null || value < lowestValue) {
+                lowestValue = value;
+                lowestID = id;
+            }
+        }
+        if (lowestID == null) {
+            throw new JSONException("No basic model found");
+        }
+        return lowestID;
+    }
+
+    @Override
+    public Map<String,Card> getCards(String deckId) {
+        Map<String,Card> cards = new HashMap<String,Card>();
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(SQL_SELECT_CARDS);
+            try {
+                statement.setString(1, deckId);
+                ResultSet rs = statement.executeQuery();
+                while (rs.next()) {
+                    String front = rs.getString(2);
+                    cards.put(front, new Card(rs.getString(1), front, rs.getString(3)));
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw wrap("Can't read cards", e);
+        }
+        return cards;
+    }
+
+    @Override
+    public List<Card> getCardsPage(String deckId, long beforeNoteId, int limit) {
+        List<Card> cards = new ArrayList<Card>(limit);
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(SQL_SELECT_CARDS_PAGE);
+            try {
+                statement.setString(1, deckId);
+                statement.setLong(2, beforeNoteId);
+                statement.setInt(3, limit);
+                ResultSet rs = statement.executeQuery();
+                while (rs.next()) {
+                    cards.add(new Card(rs.getString(1), rs.getString(2), rs.getString(3)));
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw wrap("Can't read cards", e);
+        }
+        return cards;
+    }
+
+    @Override
+    public Set<String> getFronts(String deckId) {
+        Set<String> fronts = new HashSet<String>();
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(SQL_SELECT_FRONTS);
+            try {
+                statement.setString(1, deckId);
+                ResultSet rs = statement.executeQuery();
+                while (rs.next()) {
+                    fronts.add(rs.getString(1));
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw wrap("Can't read cards", e);
+        }
+        return fronts;
+    }
+
+    @Override
+    public int countCards(String deckId) {
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(SQL_COUNT_CARDS);
+            try {
+                statement.setString(1, deckId);
+                ResultSet rs = statement.executeQuery();
+                return rs.next() ? rs.getInt(1) : 0;
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw wrap("Can't count cards", e);
+        }
+    }
+
+    /**
+     * Streams the fronts from a single sorted query. Unlike AnkiDroidSyncer, a JDBC result set
+     * has no size limit, so there is no need to page through the deck.
+     */
+    @Override
+    public FrontCursor openSortedFronts(String deckId, int sortMemory, File tempDir) {
+        final PreparedStatement statement;
+        final ResultSet rs;
+        try {
+            statement = mConnection.prepareStatement(SQL_SORTED_FRONTS);
+            try {
+                statement.setString(1, deckId);
+                rs = statement.executeQuery();
+            } catch (SQLException e) {
+                statement.close();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw wrap("Can't read cards", e);
+        }
+        return new FrontCursor() {
+            public String next() {
+                try {
+                    return rs.next() ? rs.getString(1) : null;
+                } catch (SQLException e) {
+                    throw wrap("Can't read cards", e);
+                }
+            }
+
+            public void close() {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    SyncLog.w(TAG, "Error closing query: " + e);
+                }
+            }
+        };
+    }
+
+    @Override
+    public long allocateDue(String deckId, int count) {
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(SQL_NEXT_DUE);
+            try {
+                statement.setString(1, deckId);
+                ResultSet rs = statement.executeQuery();
+                return rs.next() ? rs.getLong(1) : 1;
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw wrap("Can't read due values", e);
+        }
+    }
+
+    private String generateGuid() {
+        char[] guid = new char[5];
+        for (int i = 0; i < guid.length; i++) {
+            guid[i] = GUID_CHARS.charAt(mRandom.nextInt(GUID_CHARS.length()));
+        }
+        return new String(guid);
+    }
+
+    /**
+     * Adds the cards using two batched prepared statements in a single transaction. The rows are
+     * the same as those written by AnkiDroidSyncer.addCard().
+     */
+    @Override
+    public boolean addCards(Deck deck, String modelID, List<Card> cards,
+            ImportSession session) {
+        try {
+            mConnection.setAutoCommit(false);
+            PreparedStatement notes = mConnection.prepareStatement(SQL_INSERT_NOTE);
+            PreparedStatement cardRows = mConnection.prepareStatement(SQL_INSERT_CARD);
+            try {
+                long due = allocateDue(deck.getID(), cards.size());
+                long id = mIdAllocator.allocate(2 * cards.size());
+                if (session != null) {
+                    session.recordIds(id, id + 2 * cards.size() - 1);
+                }
+                String tags = (session != null) ? session.getTagsColumn() : "";
+                for (Card card : cards) {
+                    long noteID = id++;
+                    notes.setLong(1, noteID);
+                    notes.setString(2, generateGuid());
+                    notes.setString(3, modelID);
+                    notes.setLong(4, noteID / 1000);
+                    notes.setString(5, tags);
+                    notes.setString(6, card.getBack());
+                    notes.setString(7, card.getFront());
+                    notes.setLong(8, fieldChecksum(card.getFront()));
+                    notes.addBatch();
+
+                    long cardID = id++;
+                    cardRows.setLong(1, cardID);
+                    cardRows.setLong(2, noteID);
+                    cardRows.setString(3, deck.getID());
+                    cardRows.setLong(4, cardID / 1000);
+                    cardRows.setLong(5, due++);
+                    cardRows.addBatch();
+                }
+                notes.executeBatch();
+                cardRows.executeBatch();
+                mConnection.commit();
+                return true;
+            } finally {
+                notes.close();
+                cardRows.close();
+            }
+        } catch (SQLException e) {
+            SyncLog.e(TAG, "Error adding cards: " + e);
+            try {
+                mConnection.rollback();
+            } catch (SQLException ignored) {}
+            return false;
+        }
+    }
+
+    @Override
+    public IntegrityReport verify(String deckId) {
+        return new IntegrityCheck() {
+            @Override
+            protected long[] queryRow(String sql, String deckId, int columns) {
+                long[] row = new long[columns];
+                try {
+                    PreparedStatement statement = mConnection.prepareStatement(sql);
+                    try {
+                        statement.setString(1, deckId);
+                        ResultSet rs = statement.executeQuery();
+                        if (rs.next()) {
+                            for (int i = 0; i < columns; i++) {
+                                row[i] = rs.getLong(i + 1);
+                            }
+                        }
+                    } finally {
+                        statement.close();
+                    }
+                } catch (SQLException e) {
+                    throw wrap("Can't verify deck", e);
+                }
+                return row;
+            }
+
+            @Override
+            protected List<String> queryColumn(String sql, String deckId, int limit) {
+                List<String> values = new ArrayList<String>();
+                try {
+                    PreparedStatement statement = mConnection.prepareStatement(sql);
+                    try {
+                        statement.setString(1, deckId);
+                        statement.setInt(2, limit);
+                        ResultSet rs = statement.executeQuery();
+                        while (rs.next()) {
+                            values.add(rs.getString(1));
+                        }
+                    } finally {
+                        statement.close();
+                    }
+                } catch (SQLException e) {
+                    throw wrap("Can't verify deck", e);
+                }
+                return values;
+            }
+        }.run(deckId);
+    }
+
+    /**
+     * Deletes the session's notes and cards with the same statements as AnkiDroidSyncer, batched
+     * so that each chunk of the ID range is one round trip per statement.
+     */
+    @Override
+    public int rollback(ImportSession session) {
+        if (session.isEmpty()) {
+            return 0;
+        }
+        String[] sql = {
+            SQL_ROLLBACK_CARD_GRAVES, SQL_ROLLBACK_NOTE_GRAVES, SQL_ROLLBACK_CARDS,
+            SQL_ROLLBACK_NOTES,
+        };
+        int deleted = 0;
+        try {
+            mConnection.setAutoCommit(false);
+            for (int i = 0; i < sql.length; i++) {
+                // Running each statement over all the chunks before the next one is just as
+                // correct as going chunk by chunk, and lets each statement be a single batch.
+                PreparedStatement statement = mConnection.prepareStatement(sql[i]);
+                try {
+                    for (long first = session.getFirstId(); first <= session.getLastId();
+                            first += ROLLBACK_CHUNK_IDS) {
+                        statement.setLong(1, first);
+                        statement.setLong(2,
+                                Math.min(first + ROLLBACK_CHUNK_IDS - 1, session.getLastId()));
+                        statement.setString(3, session.getTagsPattern());
+                        statement.addBatch();
+                    }
+                    int[] rows = statement.executeBatch();
+                    if (i == sql.length - 1) {
+                        for (int count : rows) {
+                            deleted += count;  // SQL_ROLLBACK_NOTES.
+                        }
+                    }
+                } finally {
+                    statement.close();
+                }
+            }
+            mConnection.commit();
+        } catch (SQLException e) {
+            try {
+                mConnection.rollback();
+            } catch (SQLException ignored) {}
+            throw wrap("Can't roll back " + session.getTag(), e);
+        }
+        SyncLog.i(TAG, "Rolled back " + deleted + " notes from " + session);
+        return deleted;
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Command-line sync, for building decks in bulk on a desktop or server.
+ *
+ * Syncs one import file into any number of collections, running up to --parallel syncs at once
+ * (each collection is a separate SQLite file, so they do not contend with each other), and prints
+ * throughput statistics for each collection and for the whole run. With --store memory, the
+ * cards are added to an in-memory collection instead, which measures the throughput of the
+ * pipeline without any storage cost; the collection arguments are then only used as labels.
+ * With --watch, keeps running after the first sync and syncs the new entries into every
+ * collection whenever the source file changes. With --export, does the reverse: writes the
+ * deck out as a Kanji Recognizer CSV. --prewarm benchmarks the app's launch-time prewarm (see
+ * SyncPrewarm): the startup= figure it prints is the time from starting a sync to adding the
+ * first card. --plan prints what the sync would do instead of doing it. Each sync prints the
+ * session that identifies the notes it added; --rollback removes them again. --verify checks
+ * the deck's integrity after syncing.
+ *
+ * The classes in src/jvm are not part of the Android build. Compile them together with the
+ * non-Android classes in src/main (everything except the activities and AnkiDroidSyncer), with
+ * org.json and a JDBC SQLite driver on the classpath, and the xmlpull API and kxml2 for the XML
+ * formats. src/jvm/fixtures has small KANJIDIC2 and JMdict files shaped like the real ones: a
+ * DOCTYPE longer than ImportFormat.SNIFF_BYTES, and JMdict's entities.
+ */
+public class Kanji2AnkiCli {
+    private static final long WATCH_DEBOUNCE_MILLIS = 2000;
+    private static final int PLAN_ITEMS = 20;
+
+    private static final String USAGE =
+            "usage: Kanji2AnkiCli --source <file> --deck <name> [--model <id>]\n" +
+            "                     [--batch <cards>] [--parallel <jobs>] [--store jdbc|memory]\n" +
+            "                     [--strokes <kanjivg.zip>] [--watch] [--prewarm] [--plan]\n" +
+            "                     [--verify]\n" +
+            "                     [--merge-threshold <cards>] [--sort-memory <entries>]\n" +
+            "                     <collection.anki2> [<collection.anki2> ...]\n" +
+            "       Kanji2AnkiCli --export <file> --deck <name> <collection.anki2>\n" +
+            "       Kanji2AnkiCli --rollback <session> <collection.anki2>";
+
+    private String mSource;
+    private String mExport;
+    private String mRollback;
+    private String mDeck;
+    private String mModel;
+    private int mBatchSize = SyncEngine.DEFAULT_BATCH_SIZE;
+    private int mParallelism = 1;
+    private int mMergeJoinThreshold = SyncEngine.DEFAULT_MERGE_JOIN_THRESHOLD;
+    private int mSortMemory = SyncEngine.DEFAULT_SORT_MEMORY;
+    private boolean mInMemory;
+    private String mStrokes;
+    private boolean mWatch;
+    private boolean mPrewarm;
+    private boolean mPlan;
+    private boolean mVerify;
+    private final List<String> mCollections = new ArrayList<String>();
+    // Only accessed by one sync at a time: the first, and then the ones run by the scheduler.
+    private final Map<String,CollectionStore> mStores = new HashMap<String,CollectionStore>();
+    private final Map<String,Long> mCheckpoints = new HashMap<String,Long>();
+
+    private static void usage(String error) {
+        if (error != null) {
+            System.err.println(error);
+        }
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+
+    private static int parsePositive(String option, String value) {
+        return parseAtLeast(option, value, 1);
+    }
+
+    private static int parseAtLeast(String option, String value, int min) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n >= min) {
+                return n;
+            }
+        } catch (NumberFormatException e) {}
+        usage("Invalid value for " + option + ": '" + value + "'");
+        return 0;
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                mCollections.add(arg);
+                continue;
+            }
+            if (arg.equals("--help")) {
+                usage(null);
+            }
+            if (arg.equals("--watch")) {
+                mWatch = true;
+                continue;
+            }
+            if (arg.equals("--prewarm")) {
+                mPrewarm = true;
+                continue;
+            }
+            if (arg.equals("--plan")) {
+                mPlan = true;
+                continue;
+            }
+            if (arg.equals("--verify")) {
+                mVerify = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                usage("Missing value for " + arg);
+            }
+            String value = args[++i];
+            if (arg.equals("--source")) {
+                mSource = value;
+            } else if (arg.equals("--export")) {
+                mExport = value;
+            } else if (arg.equals("--rollback")) {
+                mRollback = value;
+            } else if (arg.equals("--deck")) {
+                mDeck = value;
+            } else if (arg.equals("--model")) {
+                mModel = value;
+            } else if (arg.equals("--batch")) {
+                mBatchSize = parsePositive(arg, value);
+            } else if (arg.equals("--parallel")) {
+                mParallelism = parsePositive(arg, value);
+            } else if (arg.equals("--merge-threshold")) {
+                mMergeJoinThreshold = parseAtLeast(arg, value, 0);
+            } else if (arg.equals("--sort-memory")) {
+                mSortMemory = parsePositive(arg, value);
+            } else if (arg.equals("--strokes")) {
+                mStrokes = value;
+            } else if (arg.equals("--store")) {
+                if (!value.equals("jdbc") && !value.equals("memory")) {
+                    usage("Unknown store '" + value + "'");
+                }
+                mInMemory = value.equals("memory");
+            } else {
+                usage("Unknown option " + arg);
+            }
+        }
+        if (mInMemory && mCollections.isEmpty()) {
+            mCollections.add("memory");
+        }
+        if (mExport != null) {
+            if (mSource != null || mDeck == null || mCollections.size() != 1) {
+                usage(null);
+            }
+        } else if (mRollback != null) {
+            if (mSource != null || mInMemory || mCollections.size() != 1) {
+                usage(null);
+            }
+        } else if (mSource == null || mDeck == null || mCollections.isEmpty()) {
+            usage(null);
+        }
+    }
+
+    private CollectionStore getStore(String collection) {
+        CollectionStore store = mStores.get(collection);
+        if (store == null) {
+            if (mInMemory) {
+                InMemoryCollectionStore memoryStore = new InMemoryCollectionStore();
+                memoryStore.addDeck(mDeck);
+                store = memoryStore;
+            } else {
+                store = new JdbcCollectionStore();
+            }
+            mStores.put(collection, store);
+        }
+        return store;
+    }
+
+    private SyncEngine newEngine(String collection, long minTimestamp) {
+        SyncEngine engine = new SyncEngine(getStore(collection));
+        engine.setImportFile(mSource);
+        engine.setCollectionFile(collection);
+        engine.setDeckName(mDeck);
+        engine.setModelID(mModel);
+        engine.setBatchSize(mBatchSize);
+        engine.setMinTimestamp(minTimestamp);
+        engine.setStrokeOrderArchive(mStrokes);
+        engine.setMergeJoinThreshold(mMergeJoinThreshold);
+        engine.setSortMemory(mSortMemory);
+        engine.setVerify(mVerify);
+        return engine;
+    }
+
+    /**
+     * Does what the app does at launch, and waits for it as if the user were slow to press the
+     * sync button. Comparing startup= (or planned in, for --plan) with and without --prewarm
+     * shows the saving.
+     */
+    private void prewarm(SyncEngine engine, String collection) {
+        CollectionStore prewarmStore = mInMemory ?
+                getStore(collection) : new JdbcCollectionStore();
+        SyncPrewarm prewarm = engine.startPrewarm(prewarmStore);
+        try {
+            prewarm.await();
+        } catch (InterruptedException e) {
+            prewarm.cancel();
+            Thread.currentThread().interrupt();
+        }
+        engine.setPrewarm(prewarm);
+    }
+
+    private SyncStats syncOne(String collection, long minTimestamp) throws SyncException {
+        SyncEngine engine = newEngine(collection, minTimestamp);
+        if (mPrewarm) {
+            prewarm(engine, collection);
+        }
+        return engine.run();
+    }
+
+    /**
+     * Syncs the source into every collection. Each collection only gets the entries that are
+     * newer than the ones it got last time.
+     * @return the number of collections that failed to sync.
+     */
+    private int syncAll(ExecutorService executor) throws InterruptedException {
+        for (String collection : mCollections) {
+            getStore(collection);
+        }
+        List<Future<SyncStats>> results = new ArrayList<Future<SyncStats>>();
+        long start = System.nanoTime();
+        for (final String collection : mCollections) {
+            Long checkpoint = mCheckpoints.get(collection);
+            final long minTimestamp = (checkpoint != null) ? checkpoint : -1;
+            results.add(executor.submit(new Callable<SyncStats>() {
+                public SyncStats call() throws SyncException {
+                    return syncOne(collection, minTimestamp);
+                }
+            }));
+        }
+
+        SyncStats total = new SyncStats();
+        int failures = 0;
+        for (int i = 0; i < results.size(); i++) {
+            String collection = mCollections.get(i);
+            try {
+                SyncStats stats = results.get(i).get();
+                System.out.println(collection + ": " + stats);
+                if (stats.mIntegrity != null) {
+                    System.out.println(collection + ": integrity: " + stats.mIntegrity);
+                }
+                if (!stats.mSession.isEmpty()) {
+                    System.out.println(collection + ": undo with --rollback " + stats.mSession);
+                }
+                total.add(stats);
+                Long checkpoint = mCheckpoints.get(collection);
+                mCheckpoints.put(collection, Math.max(
+                        (checkpoint != null) ? checkpoint : -1, stats.mMaxTimestamp));
+            } catch (ExecutionException e) {
+                failures++;
+                System.out.println(collection + ": FAILED: " + e.getCause().getMessage());
+            }
+        }
+        // Per-collection times overlap when running in parallel, so report wall-clock time.
+        total.mTotalNanos = System.nanoTime() - start;
+        System.out.println("total (" + mCollections.size() + " collections, " +
+                failures + " failed): " + total);
+        return failures;
+    }
+
+    /**
+     * Prints what syncing into each collection would do, without changing any of them.
+     * @return the number of collections that could not be planned.
+     */
+    private int plan() {
+        int failures = 0;
+        for (String collection : mCollections) {
+            try {
+                SyncEngine engine = newEngine(collection, -1);
+                if (mPrewarm) {
+                    prewarm(engine, collection);
+                }
+                SyncPlan plan = engine.plan(null);
+                System.out.println(collection + ": " + plan.describe(PLAN_ITEMS));
+            } catch (SyncException e) {
+                failures++;
+                System.out.println(collection + ": FAILED: " + e.getMessage());
+            }
+        }
+        return failures;
+    }
+
+    private int rollback() {
+        String collection = mCollections.get(0);
+        ImportSession session;
+        try {
+            session = ImportSession.parse(mRollback);
+        } catch (IllegalArgumentException e) {
+            usage(e.getMessage());
+            return 2;
+        }
+        SyncEngine engine = new SyncEngine(getStore(collection));
+        engine.setCollectionFile(collection);
+        long start = System.nanoTime();
+        try {
+            int deleted = engine.rollback(session);
+            long millis = (System.nanoTime() - start) / 1000000;
+            System.out.println(collection + ": removed " + deleted + " notes added by " +
+                    session.getTag() + " in " + millis + "ms");
+            return 0;
+        } catch (SyncException e) {
+            System.out.println(collection + ": FAILED: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    private int export() throws IOException {
+        String collection = mCollections.get(0);
+        CollectionStore store = getStore(collection);
+        try {
+            store.open(collection);
+            Deck deck = store.getDecks().get(mDeck);
+            if (deck == null) {
+                System.out.println("Can't find deck '" + mDeck + "' in file '" + collection + "'");
+                return 1;
+            }
+            long start = System.nanoTime();
+            int count = new KanjiRecognizerExporter(store).export(deck.getID(), mExport);
+            long millis = (System.nanoTime() - start) / 1000000;
+            System.out.println(collection + ": exported " + count + " cards to " + mExport +
+                    " in " + millis + "ms");
+            return 0;
+        } catch (CollectionException e) {
+            System.out.println(collection + ": FAILED: " + e.getMessage());
+            return 1;
+        } catch (JSONException e) {
+            System.out.println("Can't find any decks in file '" + collection + "'");
+            return 1;
+        } finally {
+            store.close();
+        }
+    }
+
+    private int run() throws InterruptedException, IOException {
+        if (mExport != null) {
+            return export();
+        }
+        if (mRollback != null) {
+            return rollback();
+        }
+        if (mPlan) {
+            return plan() == 0 ? 0 : 1;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(mParallelism);
+        int failures = syncAll(executor);
+        if (!mWatch) {
+            executor.shutdown();
+            return failures == 0 ? 0 : 1;
+        }
+
+        // Keep syncing new entries whenever the source changes, until killed.
+        final SyncScheduler scheduler = new SyncScheduler(new Runnable() {
+            public void run() {
+                try {
+                    syncAll(executor);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, WATCH_DEBOUNCE_MILLIS);
+        new NioFileWatcher(mSource).start(new Runnable() {
+            public void run() {
+                scheduler.trigger();
+            }
+        });
+        System.out.println("Watching " + mSource);
+        new CountDownLatch(1).await();
+        return 0;
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        Kanji2AnkiCli cli = new Kanji2AnkiCli();
+        cli.parseArgs(args);
+        System.exit(cli.run());
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.Character.UnicodeBlock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * The original implementations of the import paths that have since been optimized, kept as
+ * reference oracles for ImportFuzzer. Do not change them: the optimized code is correct if and
+ * only if it produces exactly what these produce.
+ */
+final class LegacyImport {
+    private LegacyImport() {}
+
+    /** KanjiRecognizerImporter.lineToFieldList() as originally written. */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    static ArrayList<String> lineToFieldList(String line, char separator) {
+        ArrayList fields = new ArrayList<String>();
+        boolean inQuotes = false;
+        String currentField = "";
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                inQuotes = !inQuotes;
+            } else if (c == separator && !inQuotes) {
+                fields.add(currentField);
+                currentField = "";
+            } else {
+                currentField += c;
+            }
+        }
+        if (!inQuotes) {
+            fields.add(currentField);
+        }
+        return fields;
+    }
+
+    private static boolean firstLetterInUnicodeBlock(String word, UnicodeBlock block) {
+        // Skip any leading symbols.
+        int i = 0;
+        int len = word.length();
+        while (i < len) {
+            final int codePoint = word.codePointAt(i);
+            if (Character.isLetter(codePoint)) {
+                break;
+            }
+            i += Character.charCount(codePoint);
+        }
+        return i < len && Character.UnicodeBlock.of(word.codePointAt(i)) == block;
+    }
+
+    private static boolean isHiragana(String word) {
+        return firstLetterInUnicodeBlock(word, UnicodeBlock.HIRAGANA);
+    }
+
+    private static boolean isKatakana(String word) {
+        return firstLetterInUnicodeBlock(word, UnicodeBlock.KATAKANA);
+    }
+
+    private static void appendWord(String word, StringBuilder s) {
+        if (s.length() > 0) {
+            s.append(" ");
+        }
+        s.append(word);
+    }
+
+    /**
+     * Kanji.parseReadings() as originally written, minus the logging.
+     * @return the on, kun and unknown readings.
+     */
+    static String[] parseReadings(String readings) {
+        String[] words = readings.split(" ");
+        StringBuilder onReadings = new StringBuilder();
+        StringBuilder kunReadings = new StringBuilder();
+        StringBuilder unknownReadings = new StringBuilder();
+
+        int length = words.length;
+        for (int i = 0; i < length; i++) {
+            String word = words[i];
+            if (isKatakana(word)) {
+                appendWord(word, onReadings);
+            } else if (isHiragana(word)) {
+                appendWord(word, kunReadings);
+            } else {
+                appendWord(word, unknownReadings);
+            }
+        }
+        return new String[] {
+            onReadings.toString(), kunReadings.toString(), unknownReadings.toString(),
+        };
+    }
+
+    /** The back of the card created by Card(Kanji) as originally written. */
+    static String cardBack(String kanji, String[] readings, String meaning) {
+        return kanji + Card.FIELD_SEPARATOR +
+                readings[0] + "<br>" + readings[1] + " " + readings[2] +
+                "<br>" + meaning;
+    }
+
+    /**
+     * Anki's field checksum: the first 8 hex digits of the SHA-1 of the field, with its tags
+     * removed. Written from Anki's definition rather than copied from AnkiSchema.fieldChecksum(),
+     * which it checks.
+     */
+    static long ankiChecksum(String field) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    field.replaceAll("<.*?>", "").getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return Long.parseLong(hex.substring(0, 8), 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * AnkiDroidSyncer.addCard() and findNextDue() as originally written, one card per
+     * transaction, ported from SQLiteDatabase to JDBC. Two things differ, so that the rows can
+     * be compared with those JdbcCollectionStore.addCards() writes: the IDs come from a counter,
+     * because the original read them from the clock and so couldn't add two cards in the same
+     * millisecond, and csum is ankiChecksum(), where the original wrote 0. The SQL is spelled
+     * out rather than taken from AnkiSchema, which the batched writer uses.
+     */
+    static final class SingleInsertWriter {
+        private static final String GUID_CHARS =
+                "!#$%&()*+,-./0123456789:;<=>?@ABCDEFGHIJKLMNOPQRSTUVWXYZ[]^_`" +
+                "abcdefghijklmnopqrstuvwxyz{|}~".toCharArray();
+
+        private final Connection mDB;
+        private long mLastID;
+
+        SingleInsertWriter(Connection db) {
+            mDB = db;
+        }
+
+        long findNextDue(String deckId) throws SQLException {
+            String sql = "select max(due) + 1 from cards" +
+                    " where did = " + deckId + " and due < 946684800;";
+            Statement statement = mDB.createStatement();
+            try {
+                ResultSet cursor = statement.executeQuery(sql);
+                if (!cursor.next()) {
+                    return 1;
+                }
+                return cursor.getLong(1);
+            } finally {
+                statement.close();
+            }
+        }
+
+        private String generateGuid() {
+            char[] guid = new char[5];
+            for (int i = 0; i < 5; i++) {
+                Random random = new Random();
+                int r = random.nextInt(GUID_CHARS.length());
+                guid[i] = GUID_CHARS.charAt(r);
+            }
+            return new String(guid);
+        }
+
+        private long nextID() {
+            mLastID = Math.max(System.currentTimeMillis(), mLastID + 1);
+            return mLastID;
+        }
+
+        boolean addCard(Deck deck, String modelID, String front, String back)
+                throws SQLException {
+            long due = findNextDue(deck.getID());
+
+            long millis = nextID();
+            String noteID = Long.toString(millis);
+            String noteTimestamp = Long.toString(millis / 1000);
+
+            millis = nextID();
+            String cardID = Long.toString(millis);
+            String cardTimestamp = Long.toString(millis / 1000);
+
+            PreparedStatement note = mDB.prepareStatement("insert into notes" +
+                    " (id, guid, mid, mod, usn, tags, flds, sfld, csum, flags, data)" +
+                    " values (?, ?, ?, ?, -1, '', ?, ?, ?, 0, '');");
+            PreparedStatement card = mDB.prepareStatement("insert into cards" +
+                    " (id, nid, did, ord, mod, usn, type, queue, due, ivl, factor, reps," +
+                    " lapses, left, odue, odid, flags, data)" +
+                    " values (?, ?, ?, 0, ?, -1, 0, 0, ?, 0, 0, 0, 0, 0, 0, 0, 0, '');");
+            try {
+                note.setString(1, noteID);
+                note.setString(2, generateGuid());
+                note.setString(3, modelID);
+                note.setString(4, noteTimestamp);
+                note.setString(5, back);
+                note.setString(6, front);
+                note.setString(7, Long.toString(ankiChecksum(front)));
+
+                card.setString(1, cardID);
+                card.setString(2, noteID);
+                card.setString(3, deck.getID());
+                card.setString(4, cardTimestamp);
+                card.setString(5, Long.toString(due));
+
+                // Start a transaction, so in case inserting into the notes table doesn't work, we
+                // don't insert into the cards table either.
+                boolean success = false;
+                mDB.setAutoCommit(false);
+                try {
+                    note.executeUpdate();
+                    card.executeUpdate();
+                    mDB.commit();
+                    success = true;
+                } finally {
+                    if (!success) {
+                        mDB.rollback();
+                    }
+                    mDB.setAutoCommit(true);
+                }
+                return success;
+            } finally {
+                note.close();
+                card.close();
+            }
+        }
+    }
+}
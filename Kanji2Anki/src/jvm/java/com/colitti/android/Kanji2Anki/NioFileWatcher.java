@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * FileWatcher based on java.nio.file.WatchService. Not available on Android before API 26, so
+ * it lives with the desktop code.
+ */
+public class NioFileWatcher implements FileWatcher {
+    private static final String TAG = "NioFileWatcher";
+
+    private final Path mFile;
+    private WatchService mWatchService;
+    private Thread mThread;
+
+    public NioFileWatcher(String path) {
+        mFile = Paths.get(path).toAbsolutePath();
+    }
+
+    @Override
+    public synchronized void start(final Runnable listener) throws IOException {
+        stop();
+        final WatchService watchService = mFile.getFileSystem().newWatchService();
+        mFile.getParent().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        final Path name = mFile.getFileName();
+        mWatchService = watchService;
+        mThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        WatchKey key = watchService.take();
+                        boolean changed = false;
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            // On overflow we don't know what changed, so assume our file did.
+                            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW ||
+                                    name.equals(event.context());
+                        }
+                        if (changed) {
+                            listener.run();
+                        }
+                        if (!key.reset()) {
+                            SyncLog.w(TAG, "Directory " + mFile.getParent() + " went away");
+                            return;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // stop() was called.
+                } catch (ClosedWatchServiceException e) {
+                    // stop() was called.
+                }
+            }
+        }, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mWatchService == null) {
+            return;
+        }
+        try {
+            mWatchService.close();
+        } catch (IOException e) {
+            SyncLog.w(TAG, "Error closing watch service: " + e);
+        }
+        mThread.interrupt();
+        mWatchService = null;
+        mThread = null;
+    }
+}
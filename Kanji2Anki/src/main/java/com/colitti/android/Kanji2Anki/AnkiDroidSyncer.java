@@ -6,19 +6,28 @@
  */
 package com.colitti.android.Kanji2Anki;
 
-import android.content.ContentValues;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.database.Cursor;
 import android.util.Log;
 
+import android.database.SQLException;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.UUID;
+import java.util.Set;
+
+import static com.colitti.android.Kanji2Anki.AnkiSchema.*;
 
 /**
  * AnkiDroid card syncer
@@ -32,54 +41,67 @@ import java.util.UUID;
  *      belongs to, when it's due, etc.
  *  - notes: one record per card, contains card contents
  */
-public class AnkiDroidSyncer {
+public class AnkiDroidSyncer implements CollectionStore {
     private static final String TAG = "AnkiDroidSyncer";
-    private static final String MAGIC_DATE = "946684800";  // Jan 1, 2000.
-
-    private static final String TABLE_COL = "col";
-    private static final String COLUMN_DECKS = "decks";
-    private static final String COLUMN_MODELS = "models";
-
-    private static final String TABLE_NOTES = "notes";
-    private static final String COLUMN_ID = "id";          // Equal to COLUMN_NOTE_ID in card table.
-    private static final String COLUMN_GUID = "guid";      // Random string?
-    private static final String COLUMN_MODEL_ID = "mid";   // Note type. See models field in col
-    private static final String COLUMN_TIMESTAMP = "mod";  // Last modified.
-    private static final String COLUMN_USN = "usn";        // Always -1?
-    private static final String COLUMN_TAGS = "tags";      // Always empty?
-    private static final String COLUMN_BACK = "flds";      // "fields?"
-    private static final String COLUMN_FRONT = "sfld";     // "search field"?
-    private static final String COLUMN_CSUM = "csum";      // Checksum? How is this calculated?
-    private static final String COLUMN_FLAGS = "flags";    // Always 0?
-    private static final String COLUMN_DATA = "data";      // Always empty?
-
-    private static final String TABLE_CARDS = "cards";
-    private static final String COLUMN_NOTE_ID = "nid";
-    private static final String COLUMN_DECK_ID = "did";
-    private static final String COLUMN_ORD = "ord";
-    private static final String COLUMN_DUE = "due";
-
-    private static final String GUID_CHARS =
-            "!#$%&()*+,-./0123456789:;<=>?@ABCDEFGHIJKLMNOPQRSTUVWXYZ[]^_`" +
-            "abcdefghijklmnopqrstuvwxyz{|}~".toCharArray();
+
+    private static final int PAGE_SIZE = 1000;
 
     private String mFilename;
     private SQLiteDatabase mDB;
+    private IdAllocator mIdAllocator;
+    private final Random mRandom = new Random();
 
     public String getFilename() {
         return mFilename;
     }
 
     public void setFilename(String filename) {
+        openDatabase(filename, SQLiteDatabase.OPEN_READWRITE);
+        SQLiteStatement maxID = mDB.compileStatement(SQL_MAX_ID);
+        try {
+            mIdAllocator = new IdAllocator(maxID.simpleQueryForLong());
+        } finally {
+            maxID.close();
+        }
+    }
+
+    private void openDatabase(String filename, int flags) {
         mFilename = filename;
         if (mDB != null) {
             mDB.close();
         }
-        mDB = SQLiteDatabase.openDatabase(mFilename, null, 0);
+        mDB = SQLiteDatabase.openDatabase(mFilename, null, flags);
+        mIdAllocator = null;
     }
 
     public AnkiDroidSyncer() {}
 
+    @Override
+    public void open(String filename) {
+        try {
+            setFilename(filename);
+        } catch (SQLException e) {
+            throw new CollectionException("Can't open database '" + filename + "'", e);
+        }
+    }
+
+    @Override
+    public void openReadOnly(String filename) {
+        try {
+            openDatabase(filename, SQLiteDatabase.OPEN_READONLY);
+        } catch (SQLException e) {
+            throw new CollectionException("Can't open database '" + filename + "'", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (mDB != null) {
+            mDB.close();
+            mDB = null;
+        }
+    }
+
     /**
      * Fetches the specified configuration setting as a JSON object.
      * @param column the name of the setting. Corresponds to the column name in the col table.
@@ -89,15 +111,20 @@ public class AnkiDroidSyncer {
     private JSONObject getConfKey(String column) throws JSONException {
         final String[] columns = {column};
         Cursor cursor = mDB.query(TABLE_COL, columns, null, null, null, null, "1");
-        cursor.moveToFirst();
-        String json = cursor.getString(0);
-        return new JSONObject(json);
+        try {
+            cursor.moveToFirst();
+            String json = cursor.getString(0);
+            return new JSONObject(json);
+        } finally {
+            cursor.close();
+        }
     }
 
     /**
      * Returns the decks defined in the collection.
      * @return a Map of deck names to Deck objects.
      */
+    @Override
     public Map<String,Deck> getDecks() throws JSONException {
         Hashtable<String,Deck> decks = new Hashtable<String,Deck>();
         JSONObject conf = getConfKey(COLUMN_DECKS);
@@ -120,6 +147,7 @@ public class AnkiDroidSyncer {
      * @throws JSONException: the JSON could not be parsed.
      * @return the model ID.
      */
+    @Override
     public String getDefaultModelID() throws JSONException {
         Hashtable<String,String> models = new Hashtable<String, String>();
         JSONObject conf = getConfKey(COLUMN_MODELS);
@@ -155,32 +183,53 @@ public class AnkiDroidSyncer {
      * @param deckId the deck to examine.
      * @return A map mapping card fronts to card objects.
      */
+    @Override
     public Map<String,Card> getCards(String deckId) {
-        final String[] columns = {COLUMN_ID, COLUMN_FRONT};
+        // Read the deck a page at a time. A single cursor over a large deck does not fit in a
+        // CursorWindow.
         Map <String,Card> cards = new Hashtable<String,Card>();
-        String[] selection = {deckId};
-        // Example: "select cards.nid, notes.sfld, notes.flds from notes join cards on cards.nid =
-        // notes.id where cards.did = <deckid>;"
-        String sql =
-                "select " + TABLE_CARDS + "." + COLUMN_NOTE_ID +
-                ", " + TABLE_NOTES + "." + COLUMN_FRONT +
-                ", " + TABLE_NOTES + "." + COLUMN_BACK +
-                " from " + TABLE_NOTES + " join " + TABLE_CARDS +
-                " on " + TABLE_CARDS + "." + COLUMN_NOTE_ID + "=" + TABLE_NOTES + "." + COLUMN_ID +
-                " where " + TABLE_CARDS + "." + COLUMN_DECK_ID + " = ?;";
-        Log.i(TAG, "query='" + sql + "'");
-
-        Cursor cursor = mDB.rawQuery(sql, selection);
-        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-            String id = cursor.getString(0);
-            String front = cursor.getString(1);
-            String back = cursor.getString(2);
-            Card card = new Card(id, front, back);
-            cards.put(front, card);
+        long before = Long.MAX_VALUE;
+        List<Card> page;
+        do {
+            page = getCardsPage(deckId, before, PAGE_SIZE);
+            for (Card card : page) {
+                cards.put(card.getFront(), card);
+                before = Long.parseLong(card.mID);
+            }
+        } while (page.size() == PAGE_SIZE);
+        return cards;
+    }
+
+    @Override
+    public List<Card> getCardsPage(String deckId, long beforeNoteId, int limit) {
+        List<Card> cards = new ArrayList<Card>();
+        String[] selection = {deckId, Long.toString(beforeNoteId), Integer.toString(limit)};
+        Cursor cursor = mDB.rawQuery(SQL_SELECT_CARDS_PAGE, selection);
+        try {
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                cards.add(new Card(cursor.getString(0), cursor.getString(1), cursor.getString(2)));
+            }
+        } finally {
+            cursor.close();
         }
         return cards;
     }
 
+    @Override
+    public Set<String> getFronts(String deckId) {
+        Set<String> fronts = new HashSet<String>();
+        String[] selection = {deckId};
+        Cursor cursor = mDB.rawQuery(SQL_SELECT_FRONTS, selection);
+        try {
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                fronts.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return fronts;
+    }
+
     /**
      * Checks if the deck already has a certain card.
      * @param deckId
@@ -188,7 +237,7 @@ public class AnkiDroidSyncer {
      * @return true if the deck contains a note with the specified front.
      */
     public boolean hasCard(String deckId, String front) {
-        return getCards(deckId).containsValue(front);
+        return getFronts(deckId).contains(front);
     }
 
     /**
@@ -202,18 +251,55 @@ public class AnkiDroidSyncer {
      * @return the value of the due column.
      */
     public long findNextDue(String deckId) {
-        final String[] args = {};
-        String sql =
-                "select max(" + COLUMN_DUE + ") + 1" +
-                " from " + TABLE_CARDS +
-                " where " + COLUMN_DECK_ID + " = " + deckId +
-                " and " + COLUMN_DUE + " < " + MAGIC_DATE +";";
-
-        Cursor cursor = mDB.rawQuery(sql, args);
-        if (!cursor.moveToFirst())
-            return 1;
-
-        return cursor.getLong(0);
+        final String[] args = {deckId};
+        Cursor cursor = mDB.rawQuery(SQL_NEXT_DUE, args);
+        try {
+            if (!cursor.moveToFirst())
+                return 1;
+
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public int countCards(String deckId) {
+        String[] selection = {deckId};
+        Cursor cursor = mDB.rawQuery(SQL_COUNT_CARDS, selection);
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public FrontCursor openSortedFronts(final String deckId, int sortMemory, File tempDir) {
+        // A single sorted query would be cheaper, but its results don't fit in a CursorWindow.
+        return new PagedFrontCursor(sortMemory, tempDir) {
+            @Override
+            protected long fetch(long afterNoteId, int limit, List<String> fronts) {
+                String[] selection =
+                        {Long.toString(afterNoteId), deckId, Integer.toString(limit)};
+                Cursor cursor = mDB.rawQuery(SQL_FRONTS_PAGE, selection);
+                long last = afterNoteId;
+                try {
+                    for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                        last = cursor.getLong(0);
+                        fronts.add(cursor.getString(1));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return last;
+            }
+        };
+    }
+
+    @Override
+    public long allocateDue(String deckId, int count) {
+        return findNextDue(deckId);
     }
 
     /**
@@ -227,8 +313,7 @@ public class AnkiDroidSyncer {
     public String generateGuid() {
         char[] guid = new char[5];
         for (int i = 0; i < 5; i++) {
-            Random random = new Random();
-            int r = random.nextInt(GUID_CHARS.length());
+            int r = mRandom.nextInt(GUID_CHARS.length());
             guid[i] = GUID_CHARS.charAt(r);
         }
         return new String(guid);
@@ -236,7 +321,8 @@ public class AnkiDroidSyncer {
 
 
     /**
-     * Adds a note and a corresponding card, with the specified model ID, to the specified deck.
+     * Adds a note and a corresponding card for each of the specified cards, with the specified
+     * model ID, to the specified deck.
      *
      * First create the note. Example:
      *
@@ -246,87 +332,170 @@ public class AnkiDroidSyncer {
      *   - mid: model ID of the card, from models in col table.
      *   - mod: timestamp in seconds
      *   - usn: -1 ?
-     *   - tags: empty
+     *   - tags: the session's tag, if any (see ImportSession), otherwise empty
      *   - flds: back of card
      *   - sfld: front of card
-     *   - csum: we don't know how to calculate this, so we set it to zero. AnkiDroid doesn't care?
+     *   - csum: first 32 bits of the SHA-1 of sfld. See AnkiSchema.fieldChecksum().
      *   - flags: 0
      *   - data: empty
      *
      *  Then we add the card to the cards table. Here we mostly set everything to zero except card
      *  ID, note ID (the ID of the note we just created), the timestamp, and the due time.
      *
+     *  All the rows are inserted with two compiled statements in a single transaction, so either
+     *  all the cards are added or none are. IDs and due values are allocated once per batch.
+     *
      * @param deck the deck to add the card to.
      * @param modelID the ID of the model (card type) to use.
-     * @param front the front of the card.
-     * @param back the back of the card.
-     * @return true if the card was added successfully, false otherwise.
+     * @param cards the cards to add.
+     * @param session the session to tag the notes with, or null.
+     * @return true if the cards were added successfully, false otherwise.
      */
-    public boolean addCard(Deck deck, String modelID, String front, String back) {
-        long due = findNextDue(deck.getID());
-
-        long millis = System.currentTimeMillis();
-        String noteID = Long.toString(millis);
-        String noteTimestamp = Long.toString(millis / 1000);
-
-        // Get a 64-bit random number.
-        long id = UUID.randomUUID().getLeastSignificantBits();
-        String guid = Long.toHexString(id);
-
-        ContentValues noteValues = new ContentValues();
-        noteValues.put(COLUMN_ID, noteID);
-        noteValues.put(COLUMN_GUID, generateGuid());
-        noteValues.put(COLUMN_MODEL_ID, modelID);
-        noteValues.put(COLUMN_TIMESTAMP, noteTimestamp);
-        noteValues.put(COLUMN_USN, "-1");
-        noteValues.put(COLUMN_TAGS, "");
-        noteValues.put(COLUMN_BACK, back);
-        noteValues.put(COLUMN_FRONT, front);
-        noteValues.put(COLUMN_CSUM, "0");   // AnkiDroid doesn't seem to check this.
-        noteValues.put(COLUMN_FLAGS, "0");
-        noteValues.put(COLUMN_DATA, "");
-
-        millis = System.currentTimeMillis();
-        String cardID = Long.toString(millis);
-        String cardTimestamp = Long.toString(millis / 1000);
-
-        ContentValues cardValues = new ContentValues();
-        cardValues.put(COLUMN_ID, cardID);
-        cardValues.put(COLUMN_NOTE_ID, noteID);
-        cardValues.put(COLUMN_DECK_ID, deck.getID());
-        cardValues.put(COLUMN_ORD, 0);
-        cardValues.put(COLUMN_TIMESTAMP, cardTimestamp);
-        cardValues.put(COLUMN_USN, "-1");
-        cardValues.put("type", 0);
-        cardValues.put("queue", 0);
-        cardValues.put(COLUMN_DUE, Long.toString(due));
-        cardValues.put("ivl", 0);
-        cardValues.put("factor", 0);
-        cardValues.put("reps", 0);
-        cardValues.put("lapses", 0);
-        cardValues.put("left", 0);
-        cardValues.put("odue", 0);
-        cardValues.put("odid", 0);
-        cardValues.put(COLUMN_FLAGS, 0);
-        cardValues.put(COLUMN_DATA, "");
-
-        // Start a transaction, so in case inserting into the notes table doesn't work, we don't
-        // insert into the cards table either.
+    @Override
+    public boolean addCards(Deck deck, String modelID, List<Card> cards,
+            ImportSession session) {
+        if (cards.isEmpty()) {
+            return true;
+        }
+        String deckId = deck.getID();
         boolean success = false;
         mDB.beginTransaction();
+        SQLiteStatement notes = mDB.compileStatement(SQL_INSERT_NOTE);
+        SQLiteStatement cardRows = mDB.compileStatement(SQL_INSERT_CARD);
         try {
-            mDB.insert(TABLE_NOTES, null, noteValues);
-            mDB.insert(TABLE_CARDS, null, cardValues);
+            long due = allocateDue(deckId, cards.size());
+            // Two IDs per card: one for the note, and one for the card.
+            long id = mIdAllocator.allocate(2 * cards.size());
+            if (session != null) {
+                session.recordIds(id, id + 2 * cards.size() - 1);
+            }
+            String tags = (session != null) ? session.getTagsColumn() : "";
+            for (Card card : cards) {
+                long noteID = id++;
+                notes.bindLong(1, noteID);
+                notes.bindString(2, generateGuid());
+                notes.bindString(3, modelID);
+                notes.bindLong(4, noteID / 1000);
+                notes.bindString(5, tags);
+                notes.bindString(6, card.getBack());
+                notes.bindString(7, card.getFront());
+                notes.bindLong(8, fieldChecksum(card.getFront()));
+                if (notes.executeInsert() == -1) {
+                    return false;
+                }
+
+                long cardID = id++;
+                cardRows.bindLong(1, cardID);
+                cardRows.bindLong(2, noteID);
+                cardRows.bindString(3, deckId);
+                cardRows.bindLong(4, cardID / 1000);
+                cardRows.bindLong(5, due++);
+                if (cardRows.executeInsert() == -1) {
+                    return false;
+                }
+            }
             mDB.setTransactionSuccessful();
             success = true;
         } finally {
+            notes.close();
+            cardRows.close();
             mDB.endTransaction();
         }
 
         return success;
     }
 
+    @Override
+    public IntegrityReport verify(String deckId) {
+        return new IntegrityCheck() {
+            @Override
+            protected long[] queryRow(String sql, String deckId, int columns) {
+                String[] selection = {deckId};
+                Cursor cursor = mDB.rawQuery(sql, selection);
+                long[] row = new long[columns];
+                try {
+                    if (cursor.moveToFirst()) {
+                        for (int i = 0; i < columns; i++) {
+                            row[i] = cursor.getLong(i);
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return row;
+            }
+
+            @Override
+            protected List<String> queryColumn(String sql, String deckId, int limit) {
+                String[] selection = {deckId, Integer.toString(limit)};
+                Cursor cursor = mDB.rawQuery(sql, selection);
+                List<String> values = new ArrayList<String>();
+                try {
+                    for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                        values.add(cursor.getString(0));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return values;
+            }
+        }.run(deckId);
+    }
+
+    /**
+     * Deletes the session's notes and cards, one chunk of its ID range at a time. For each chunk,
+     * records the deletions in the graves table and then deletes the cards and the notes.
+     */
+    @Override
+    public int rollback(ImportSession session) {
+        if (session.isEmpty()) {
+            return 0;
+        }
+        String[] sql = {
+            SQL_ROLLBACK_CARD_GRAVES, SQL_ROLLBACK_NOTE_GRAVES, SQL_ROLLBACK_CARDS,
+            SQL_ROLLBACK_NOTES,
+        };
+        SQLiteStatement[] statements = new SQLiteStatement[sql.length];
+        int deleted = 0;
+        mDB.beginTransaction();
+        try {
+            for (int i = 0; i < sql.length; i++) {
+                statements[i] = mDB.compileStatement(sql[i]);
+            }
+            for (long first = session.getFirstId(); first <= session.getLastId();
+                    first += ROLLBACK_CHUNK_IDS) {
+                long last = Math.min(first + ROLLBACK_CHUNK_IDS - 1, session.getLastId());
+                for (int i = 0; i < statements.length; i++) {
+                    statements[i].bindLong(1, first);
+                    statements[i].bindLong(2, last);
+                    statements[i].bindString(3, session.getTagsPattern());
+                    int rows = statements[i].executeUpdateDelete();
+                    if (i == statements.length - 1) {
+                        deleted += rows;  // SQL_ROLLBACK_NOTES.
+                    }
+                }
+            }
+            mDB.setTransactionSuccessful();
+        } catch (SQLException e) {
+            throw new CollectionException("Can't roll back " + session.getTag(), e);
+        } finally {
+            for (SQLiteStatement statement : statements) {
+                if (statement != null) {
+                    statement.close();
+                }
+            }
+            mDB.endTransaction();
+        }
+        Log.i(TAG, "Rolled back " + deleted + " notes from " + session);
+        return deleted;
+    }
+
+    public boolean addCard(Deck deck, String modelID, String front, String back) {
+        return addCards(deck, modelID, Collections.singletonList(new Card(null, front, back)),
+                null);
+    }
+
     public boolean addCard(Deck deck, String modelID, Card card) {
         return addCard(deck, modelID, card.getFront(), card.getBack());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+/**
+ * Table and column names of an Anki collection, and the SQL we run against it.
+ *
+ * Shared by the AnkiDroid and JDBC backends so that both read and write exactly the same rows.
+ * See AnkiDroidSyncer for what we know about the individual columns.
+ */
+final class AnkiSchema {
+    private static final Pattern HTML_TAG = Pattern.compile("<[^>]*>");
+
+    static final String MAGIC_DATE = "946684800";  // Jan 1, 2000.
+
+    static final String TABLE_COL = "col";
+    static final String COLUMN_DECKS = "decks";
+    static final String COLUMN_MODELS = "models";
+
+    static final String TABLE_NOTES = "notes";
+    static final String COLUMN_ID = "id";          // Equal to COLUMN_NOTE_ID in card table.
+    static final String COLUMN_GUID = "guid";      // Random string?
+    static final String COLUMN_MODEL_ID = "mid";   // Note type. See models field in col
+    static final String COLUMN_TIMESTAMP = "mod";  // Last modified.
+    static final String COLUMN_USN = "usn";        // Always -1?
+    static final String COLUMN_TAGS = "tags";      // Space-separated, with a leading and
+                                                   // trailing space. See ImportSession.
+    static final String COLUMN_BACK = "flds";      // "fields?"
+    static final String COLUMN_FRONT = "sfld";     // "search field"?
+    static final String COLUMN_CSUM = "csum";      // See fieldChecksum().
+    static final String COLUMN_FLAGS = "flags";    // Always 0?
+    static final String COLUMN_DATA = "data";      // Always empty?
+
+    static final String TABLE_CARDS = "cards";
+    static final String COLUMN_NOTE_ID = "nid";
+    static final String COLUMN_DECK_ID = "did";
+    static final String COLUMN_ORD = "ord";
+    static final String COLUMN_DUE = "due";
+    static final String COLUMN_TYPE = "type";
+    static final int CARD_TYPE_NEW = 0;
+
+    // Deletions, so that syncing to AnkiWeb deletes the notes and cards there too.
+    static final String TABLE_GRAVES = "graves";
+    static final int GRAVE_CARD = 0;
+    static final int GRAVE_NOTE = 1;
+
+    static final String GUID_CHARS =
+            "!#$%&()*+,-./0123456789:;<=>?@ABCDEFGHIJKLMNOPQRSTUVWXYZ[]^_`" +
+            "abcdefghijklmnopqrstuvwxyz{|}~";
+
+    // Example: "select cards.nid, notes.sfld, notes.flds from notes join cards on cards.nid =
+    // notes.id where cards.did = <deckid>;"
+    static final String SQL_SELECT_CARDS =
+            "select " + TABLE_CARDS + "." + COLUMN_NOTE_ID +
+            ", " + TABLE_NOTES + "." + COLUMN_FRONT +
+            ", " + TABLE_NOTES + "." + COLUMN_BACK +
+            " from " + TABLE_NOTES + " join " + TABLE_CARDS +
+            " on " + TABLE_CARDS + "." + COLUMN_NOTE_ID + "=" + TABLE_NOTES + "." + COLUMN_ID +
+            " where " + TABLE_CARDS + "." + COLUMN_DECK_ID + " = ?;";
+
+    // Keyset pagination: each page starts below the lowest note ID of the previous one, so reading
+    // a deck of any size never needs a large cursor. The limit counts notes, not cards: otherwise
+    // a note with several cards could straddle two pages, and the next page, which starts below
+    // its ID, would skip the rest of them.
+    static final String SQL_SELECT_CARDS_PAGE =
+            "select " + TABLE_NOTES + "." + COLUMN_ID +
+            ", " + TABLE_NOTES + "." + COLUMN_FRONT +
+            ", " + TABLE_NOTES + "." + COLUMN_BACK +
+            " from " + TABLE_NOTES + " join " + TABLE_CARDS +
+            " on " + TABLE_CARDS + "." + COLUMN_NOTE_ID + "=" + TABLE_NOTES + "." + COLUMN_ID +
+            " where " + TABLE_CARDS + "." + COLUMN_DECK_ID + " = ?" +
+            " and " + TABLE_NOTES + "." + COLUMN_ID + " < ?" +
+            " group by " + TABLE_NOTES + "." + COLUMN_ID +
+            " order by " + TABLE_NOTES + "." + COLUMN_ID + " desc limit ?;";
+
+    static final String SQL_SELECT_FRONTS =
+            "select " + TABLE_NOTES + "." + COLUMN_FRONT +
+            " from " + TABLE_NOTES + " join " + TABLE_CARDS +
+            " on " + TABLE_CARDS + "." + COLUMN_NOTE_ID + "=" + TABLE_NOTES + "." + COLUMN_ID +
+            " where " + TABLE_CARDS + "." + COLUMN_DECK_ID + " = ?;";
+
+    static final String SQL_COUNT_CARDS =
+            "select count(*) from " + TABLE_CARDS + " where " + COLUMN_DECK_ID + " = ?;";
+
+    // sfld is declared as an integer, so numeric fronts are stored as integers; cast them so
+    // everything sorts and compares as text.
+    private static final String FRONT_AS_TEXT =
+            "cast(" + TABLE_NOTES + "." + COLUMN_FRONT + " as text)";
+
+    // The distinct fronts in a deck, in code point order, in one query. Nothing indexes the
+    // fronts of a deck, so this sorts the whole deck: only page through it with a cursor that
+    // streams, not with "front > ?" pages, which would sort it again for every page.
+    static final String SQL_SORTED_FRONTS =
+            "select distinct " + FRONT_AS_TEXT + " as front" +
+            " from " + TABLE_NOTES + " join " + TABLE_CARDS +
+            " on " + TABLE_CARDS + "." + COLUMN_NOTE_ID + "=" + TABLE_NOTES + "." + COLUMN_ID +
+            " where " + TABLE_CARDS + "." + COLUMN_DECK_ID + " = ?" +
+            " order by front;";
+
+    // The fronts of a page of notes in a deck, in note ID order, for PagedFrontCursor. Each page
+    // seeks to its first note ID, and finds the note's cards through ix_cards_nid. The + stops
+    // SQLite from using ix_cards_sched instead, which would scan the whole deck for every note;
+    // it also drops the column's affinity, hence the cast of the deck ID.
+    static final String SQL_FRONTS_PAGE =
+            "select " + TABLE_NOTES + "." + COLUMN_ID + ", " + FRONT_AS_TEXT +
+            " from " + TABLE_NOTES +
+            " where " + TABLE_NOTES + "." + COLUMN_ID + " > ?" +
+            " and exists (select 1 from " + TABLE_CARDS +
+            " where " + TABLE_CARDS + "." + COLUMN_NOTE_ID + "=" + TABLE_NOTES + "." + COLUMN_ID +
+            " and +" + TABLE_CARDS + "." + COLUMN_DECK_ID + " = cast(? as integer))" +
+            " order by " + TABLE_NOTES + "." + COLUMN_ID + " limit ?;";
+
+    // Note and card IDs are both timestamps, so allocate above the highest of either.
+    static final String SQL_MAX_ID =
+            "select max(ifnull((select max(" + COLUMN_ID + ") from " + TABLE_NOTES + "), 0)," +
+            " ifnull((select max(" + COLUMN_ID + ") from " + TABLE_CARDS + "), 0));";
+
+    static final String SQL_NEXT_DUE =
+            "select max(" + COLUMN_DUE + ") + 1" +
+            " from " + TABLE_CARDS +
+            " where " + COLUMN_DECK_ID + " = ?" +
+            " and " + COLUMN_DUE + " < " + MAGIC_DATE + ";";
+
+    static final String SQL_INSERT_NOTE =
+            "insert into " + TABLE_NOTES + " (" +
+            COLUMN_ID + ", " + COLUMN_GUID + ", " + COLUMN_MODEL_ID + ", " + COLUMN_TIMESTAMP +
+            ", " + COLUMN_USN + ", " + COLUMN_TAGS + ", " + COLUMN_BACK + ", " + COLUMN_FRONT +
+            ", " + COLUMN_CSUM + ", " + COLUMN_FLAGS + ", " + COLUMN_DATA +
+            ") values (?, ?, ?, ?, -1, ?, ?, ?, ?, 0, '');";
+
+    static final String SQL_INSERT_CARD =
+            "insert into " + TABLE_CARDS + " (" +
+            COLUMN_ID + ", " + COLUMN_NOTE_ID + ", " + COLUMN_DECK_ID + ", " + COLUMN_ORD +
+            ", " + COLUMN_TIMESTAMP + ", " + COLUMN_USN + ", type, queue, " + COLUMN_DUE +
+            ", ivl, factor, reps, lapses, left, odue, odid, " + COLUMN_FLAGS + ", " + COLUMN_DATA +
+            ") values (?, ?, ?, 0, ?, -1, 0, 0, ?, 0, 0, 0, 0, 0, 0, 0, 0, '');";
+
+    // Integrity checks. See IntegrityCheck. The first two are aggregate scans over the deck; the
+    // others fetch examples, and only run if the scans found something.
+    private static final String DECK_NOTES =
+            " from " + TABLE_NOTES + " join " + TABLE_CARDS +
+            " on " + TABLE_CARDS + "." + COLUMN_NOTE_ID + "=" + TABLE_NOTES + "." + COLUMN_ID +
+            " where " + TABLE_CARDS + "." + COLUMN_DECK_ID + " = ?";
+    private static final String DECK_CARDS =
+            " from " + TABLE_CARDS + " left join " + TABLE_NOTES +
+            " on " + TABLE_NOTES + "." + COLUMN_ID + "=" + TABLE_CARDS + "." + COLUMN_NOTE_ID +
+            " where " + TABLE_CARDS + "." + COLUMN_DECK_ID + " = ?";
+    private static final String IS_ORPHAN = TABLE_NOTES + "." + COLUMN_ID + " is null";
+    private static final String IS_ZERO_CSUM = TABLE_NOTES + "." + COLUMN_CSUM + " = 0";
+    private static final String IS_DUE_COLLISION =
+            TABLE_CARDS + "." + COLUMN_TYPE + " = " + CARD_TYPE_NEW +
+            " and " + TABLE_CARDS + "." + COLUMN_DUE + " >= " + MAGIC_DATE;
+    private static final String DUPLICATE_FRONTS =
+            "select cast(" + TABLE_NOTES + "." + COLUMN_FRONT + " as text), count(*) as n" +
+            DECK_NOTES + " group by 1 having n > 1";
+    static final String SQL_VERIFY_CARDS =
+            "select count(*), ifnull(sum(" + IS_ORPHAN + "), 0)" +
+            ", ifnull(sum(" + IS_ZERO_CSUM + "), 0)" +
+            ", ifnull(sum(" + IS_DUE_COLLISION + "), 0)" + DECK_CARDS + ";";
+    static final String SQL_VERIFY_DUPLICATES =
+            "select count(*), ifnull(sum(n), 0) from (" + DUPLICATE_FRONTS + ");";
+    static final String SQL_ORPHAN_EXAMPLES =
+            "select " + TABLE_CARDS + "." + COLUMN_ID + DECK_CARDS + " and " + IS_ORPHAN +
+            " limit ?;";
+    static final String SQL_DUPLICATE_EXAMPLES = DUPLICATE_FRONTS + " limit ?;";
+    static final String SQL_ZERO_CSUM_EXAMPLES =
+            "select " + TABLE_NOTES + "." + COLUMN_ID + DECK_NOTES + " and " + IS_ZERO_CSUM +
+            " limit ?;";
+    static final String SQL_DUE_COLLISION_EXAMPLES =
+            "select " + TABLE_CARDS + "." + COLUMN_ID + DECK_CARDS + " and " + IS_DUE_COLLISION +
+            " limit ?;";
+
+    // Rolling back an ImportSession. Each statement takes a note ID range and a tags pattern, and
+    // uses the range to avoid scanning the whole notes table.
+    private static final String SESSION_NOTES =
+            "select " + COLUMN_ID + " from " + TABLE_NOTES +
+            " where " + COLUMN_ID + " between ? and ? and " + COLUMN_TAGS + " like ?";
+    static final String SQL_ROLLBACK_CARD_GRAVES =
+            "insert into " + TABLE_GRAVES + " (usn, oid, type) select -1, " + COLUMN_ID + ", " +
+            GRAVE_CARD + " from " + TABLE_CARDS +
+            " where " + COLUMN_NOTE_ID + " in (" + SESSION_NOTES + ");";
+    static final String SQL_ROLLBACK_NOTE_GRAVES =
+            "insert into " + TABLE_GRAVES + " (usn, oid, type) select -1, " + COLUMN_ID + ", " +
+            GRAVE_NOTE + " from (" + SESSION_NOTES + ");";
+    static final String SQL_ROLLBACK_CARDS =
+            "delete from " + TABLE_CARDS +
+            " where " + COLUMN_NOTE_ID + " in (" + SESSION_NOTES + ");";
+    static final String SQL_ROLLBACK_NOTES =
+            "delete from " + TABLE_NOTES +
+            " where " + COLUMN_ID + " between ? and ? and " + COLUMN_TAGS + " like ?;";
+    // IDs per rollback statement. A session allocates two IDs per card.
+    static final long ROLLBACK_CHUNK_IDS = 20000;
+
+    /**
+     * Returns the value of the csum column for a note with the specified sort field: the first
+     * 32 bits of the SHA-1 of the field, as Anki computes it. Anki strips HTML first; this strips
+     * tags, which is the same for the plain text fields we write.
+     */
+    static long fieldChecksum(String field) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest(HTML_TAG.matcher(field).replaceAll("").getBytes("UTF-8"));
+            return ((digest[0] & 0xffL) << 24) | ((digest[1] & 0xffL) << 16) |
+                    ((digest[2] & 0xffL) << 8) | (digest[3] & 0xffL);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private AnkiSchema() {}
+}
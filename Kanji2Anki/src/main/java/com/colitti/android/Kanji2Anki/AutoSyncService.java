@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.IBinder;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Watches the import file while auto sync is enabled, and syncs the new entries whenever Kanji
+ * Recognizer writes it.
+ */
+public class AutoSyncService extends Service {
+    private static final String TAG = "AutoSyncService";
+
+    // Kanji Recognizer writes the export in several chunks. Wait for it to finish.
+    private static final long DEBOUNCE_MILLIS = 2000;
+
+    private FileWatcher mWatcher;
+    private SyncScheduler mScheduler;
+
+    /**
+     * Starts or stops the service depending on whether auto sync is enabled.
+     */
+    public static void update(Context context) {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+        Intent intent = new Intent(context, AutoSyncService.class);
+        if (settings.getBoolean(SyncPreferences.PREF_AUTO_SYNC, false)) {
+            context.startService(intent);
+        } else {
+            context.stopService(intent);
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // One scheduler for the life of the service, so that a run started before a settings
+        // change is joined by the runs requested after it, instead of overlapping them.
+        mScheduler = new SyncScheduler(new Runnable() {
+            public void run() {
+                sync();
+            }
+        }, DEBOUNCE_MILLIS);
+    }
+
+    private void sync() {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+        SyncEngine engine = SyncPreferences.newEngine(settings, true);
+        engine.setTempDir(getCacheDir());
+        try {
+            SyncStats stats = engine.run();
+            SyncPreferences.saveCheckpoint(settings, stats);
+            SyncPreferences.saveThroughput(settings, stats);
+            SyncPreferences.saveSession(settings, stats);
+            Log.i(TAG, "Auto sync: " + stats);
+            if (stats.mIntegrity != null && !stats.mIntegrity.isClean()) {
+                Log.w(TAG, "Deck has problems after auto sync: " + stats.mIntegrity);
+            }
+        } catch (SyncException e) {
+            Log.e(TAG, "Auto sync failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Called again when the settings change, so start over with the current import file.
+        // sync() reads the settings each time, so the scheduler doesn't need to change.
+        stopWatching();
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+        String importFile = settings.getString(SyncPreferences.PREF_IMPORT_FILE, "");
+
+        mWatcher = new FileObserverWatcher(importFile);
+        final SyncScheduler scheduler = mScheduler;
+        try {
+            mWatcher.start(new Runnable() {
+                public void run() {
+                    scheduler.trigger();
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "Can't watch " + importFile + ": " + e.getMessage());
+            stopWatching();
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        Log.i(TAG, "Watching " + importFile);
+
+        // Catch up on anything written while we weren't watching. If a run is in progress, this
+        // queues one more run after it.
+        mScheduler.runNow();
+        return START_STICKY;
+    }
+
+    private void stopWatching() {
+        if (mWatcher != null) {
+            mWatcher.stop();
+            mWatcher = null;
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        stopWatching();
+        mScheduler.shutdown();
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+}
@@ -22,9 +22,17 @@ public class Card {
     public Card(Kanji k) {
         mID = null;
         mFront = k.getKanji();
-        mBack = k.getKanji() + FIELD_SEPARATOR +
-                k.getOnyomi() + "<br>" + k.getKunyomi() + " " + k.getUnknownReadings() +
-                "<br>" + k.getMeaning();
+        String kanji = k.getKanji();
+        String onyomi = k.getOnyomi();
+        String kunyomi = k.getKunyomi();
+        String unknown = k.getUnknownReadings();
+        String meaning = k.getMeaning();
+        // Sized up front, so the builder never has to grow.
+        mBack = new StringBuilder(kanji.length() + onyomi.length() + kunyomi.length() +
+                        unknown.length() + meaning.length() + 10)
+                .append(kanji).append(FIELD_SEPARATOR)
+                .append(onyomi).append("<br>").append(kunyomi).append(' ').append(unknown)
+                .append("<br>").append(meaning).toString();
     }
 
     public String getFront() {
@@ -34,4 +42,8 @@ public class Card {
     public String getBack() {
         return mBack;
     }
+
+    public void appendToBack(String html) {
+        mBack += html;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,19 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+/**
+ * Thrown by a CollectionStore when the underlying database cannot be opened or accessed.
+ * Unchecked, like android.database.SQLException, which it usually wraps.
+ */
+public class CollectionException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public CollectionException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An Anki collection that cards can be synced into.
+ *
+ * Implemented by AnkiDroidSyncer on the device, by JdbcCollectionStore on the desktop, and by
+ * InMemoryCollectionStore, which has no storage cost and is used to measure and exercise the rest
+ * of the sync pipeline in isolation.
+ */
+public interface CollectionStore {
+    /**
+     * Iterates over the fronts of a deck in code point order (see
+     * ExternalSorter.CODE_POINT_ORDER), without holding them all in memory.
+     */
+    interface FrontCursor {
+        /** Returns the next front, or null if there are no more. Fronts are distinct. */
+        String next();
+        void close();
+    }
+
+    /**
+     * Opens the specified collection, closing any previously-opened one.
+     * @throws CollectionException if the collection cannot be opened.
+     */
+    void open(String filename);
+
+    /**
+     * Like open(), but the collection cannot be modified, and is not locked against other
+     * readers. addCards() and allocateDue() must not be called.
+     * @throws CollectionException if the collection cannot be opened.
+     */
+    void openReadOnly(String filename);
+
+    void close();
+
+    /**
+     * Returns the decks defined in the collection.
+     * @return a Map of deck names to Deck objects.
+     */
+    Map<String,Deck> getDecks() throws JSONException;
+
+    /**
+     * Returns the ID of the model to use for new cards if the user did not specify one.
+     */
+    String getDefaultModelID() throws JSONException;
+
+    /**
+     * Returns the cards currently in the specified deck.
+     * @return A map mapping card fronts to card objects.
+     */
+    Map<String,Card> getCards(String deckId);
+
+    /**
+     * Returns one page of the cards in the specified deck, newest first. Card IDs are note IDs,
+     * and a note with several cards in the deck is returned once.
+     * @param beforeNoteId only return cards whose note ID is lower than this. Pass Long.MAX_VALUE
+     *     for the first page, and the ID of the last card returned for subsequent pages.
+     * @param limit the maximum number of notes to return.
+     */
+    List<Card> getCardsPage(String deckId, long beforeNoteId, int limit);
+
+    /**
+     * Returns the fronts of the cards currently in the specified deck. Cheaper than getCards()
+     * when only checking whether cards are already present.
+     */
+    Set<String> getFronts(String deckId);
+
+    /**
+     * Returns the number of cards in the specified deck.
+     */
+    int countCards(String deckId);
+
+    /**
+     * Returns the distinct fronts of the cards in the specified deck, in code point order.
+     * @param sortMemory for stores that sort the fronts themselves, how many to sort in memory.
+     * @param tempDir for stores that sort the fronts themselves, where to spill the rest. See
+     *     ExternalSorter.
+     */
+    FrontCursor openSortedFronts(String deckId, int sortMemory, File tempDir);
+
+    /**
+     * Reserves count consecutive due values for new cards in the specified deck. The SQL backends
+     * derive the values from the cards already in the deck, so they are only actually reserved
+     * once cards using them have been added.
+     * @return the first due value of the range.
+     */
+    long allocateDue(String deckId, int count);
+
+    /**
+     * Adds the specified cards to the specified deck, in order, in a single transaction.
+     * @param session if not null, the notes are tagged with the session's tag, and the IDs used
+     *     are recorded in the session.
+     * @return true if all the cards were added, false otherwise.
+     */
+    boolean addCards(Deck deck, String modelID, List<Card> cards, ImportSession session);
+
+    /**
+     * Checks the specified deck for cards without notes, duplicate fronts, notes without a
+     * checksum and new cards with timestamps for due values.
+     */
+    IntegrityReport verify(String deckId);
+
+    /**
+     * Deletes the notes and cards added by the specified session, in a single transaction.
+     * Also deletes them from AnkiWeb the next time the collection is synced there.
+     * @return the number of notes deleted.
+     * @throws CollectionException if the notes could not be deleted. Nothing is deleted.
+     */
+    int rollback(ImportSession session);
+}
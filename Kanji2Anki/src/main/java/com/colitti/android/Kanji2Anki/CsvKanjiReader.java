@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+/**
+ * Reads delimiter-separated exports one line at a time.
+ *
+ * Lines either have the 5 Kanji Recognizer fields or, in tab-separated files, just the kanji, its
+ * readings and its meaning. Blank lines are ignored.
+ */
+public class CsvKanjiReader implements KanjiReader {
+    private static final int FIELDS_SHORT = 3;
+
+    private final BufferedReader mReader;
+    private final char mSeparator;
+    private int mLine;
+
+    public CsvKanjiReader(Reader reader, char separator) {
+        mReader = (reader instanceof BufferedReader) ?
+                (BufferedReader) reader : new BufferedReader(reader);
+        mSeparator = separator;
+    }
+
+    @Override
+    public Kanji next() throws IOException {
+        String line;
+        do {
+            line = mReader.readLine();
+            if (line == null) {
+                return null;
+            }
+            mLine++;
+        } while (line.trim().length() == 0);
+
+        ArrayList<String> fields = KanjiRecognizerImporter.lineToFieldList(line, mSeparator);
+        if (fields.size() == FIELDS_SHORT && mSeparator == '\t') {
+            return new Kanji(fields.get(0), fields.get(1), fields.get(2));
+        }
+        try {
+            return new Kanji(fields);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new MalformedRowException(mLine, e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+}
@@ -1,7 +1,5 @@
 package com.colitti.android.Kanji2Anki;
 
-import android.util.Log;
-
 import org.json.JSONObject;
 
 public class Deck {
@@ -19,10 +17,15 @@ public class Deck {
         return mName;
     }
 
+    public Deck(String id, String name) {
+        mID = id;
+        mName = name;
+    }
+
     public Deck(String id, JSONObject json) {
         mID = id;
         mName = json.optString("name");
         mModelID = json.optString("mid");
-        Log.i(TAG, "Found deck id='" + mID + "', name='" + mName + "'");
+        SyncLog.i(TAG, "Found deck id='" + mID + "', name='" + mName + "'");
     }
 }
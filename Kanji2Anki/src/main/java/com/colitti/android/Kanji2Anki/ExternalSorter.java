@@ -0,0 +1,234 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts more records than fit in memory.
+ *
+ * Records are buffered until the memory budget is reached, and then sorted and spilled to a
+ * temporary file. Once all records have been added, the spilled runs are merged. If nothing was
+ * spilled, the sort happens entirely in memory.
+ *
+ * Usage: add() all the records, then finish(), then next() until it returns null, then close().
+ */
+final class ExternalSorter<T> implements Closeable {
+    /** Serializes records to and from the temporary files. */
+    interface Codec<T> {
+        void write(DataOutputStream out, T record) throws IOException;
+        T read(DataInputStream in) throws IOException;
+    }
+
+    static final Codec<String> STRING_CODEC = new Codec<String>() {
+        public void write(DataOutputStream out, String s) throws IOException {
+            writeString(out, s);
+        }
+
+        public String read(DataInputStream in) throws IOException {
+            return readString(in);
+        }
+    };
+
+    /**
+     * Orders strings by code point, which is the order SQLite's default BINARY collation gives
+     * UTF-8 text. String.compareTo() differs for characters outside the BMP.
+     */
+    static final Comparator<String> CODE_POINT_ORDER = new Comparator<String>() {
+        public int compare(String a, String b) {
+            int length = Math.min(a.length(), b.length());
+            for (int i = 0; i < length; i++) {
+                char ca = a.charAt(i);
+                char cb = b.charAt(i);
+                if (ca != cb) {
+                    return fixUp(ca) - fixUp(cb);
+                }
+            }
+            return a.length() - b.length();
+        }
+
+        // Moves surrogates above the rest of the BMP.
+        private int fixUp(char c) {
+            if (c >= 0xe000) {
+                return c - 0x800;
+            } else if (c >= 0xd800) {
+                return c + 0x2000;
+            }
+            return c;
+        }
+    };
+
+    /** A spilled run, and the next record in it. */
+    private class Run {
+        final File mFile;
+        final int mCount;
+        DataInputStream mIn;
+        int mRead;
+        T mHead;
+
+        Run(File file, int count) {
+            mFile = file;
+            mCount = count;
+        }
+
+        boolean advance() throws IOException {
+            if (mRead == mCount) {
+                mHead = null;
+                mIn.close();
+                return false;
+            }
+            mHead = mCodec.read(mIn);
+            mRead++;
+            return true;
+        }
+    }
+
+    private final Comparator<T> mComparator;
+    private final Codec<T> mCodec;
+    private final int mMaxInMemory;
+    private final File mTempDir;
+
+    private final List<T> mBuffer = new ArrayList<T>();
+    private final List<Run> mRuns = new ArrayList<Run>();
+    private PriorityQueue<Run> mMerge;
+    private int mNext;
+    private int mSize;
+
+    /**
+     * @param maxInMemory the maximum number of records to hold in memory.
+     * @param tempDir where to put the temporary files, or null for the default.
+     */
+    ExternalSorter(Comparator<T> comparator, Codec<T> codec, int maxInMemory, File tempDir) {
+        mComparator = comparator;
+        mCodec = codec;
+        mMaxInMemory = Math.max(1, maxInMemory);
+        mTempDir = tempDir;
+    }
+
+    void add(T record) throws IOException {
+        mBuffer.add(record);
+        mSize++;
+        if (mBuffer.size() >= mMaxInMemory) {
+            spill();
+        }
+    }
+
+    /** Returns the number of records added. */
+    int size() {
+        return mSize;
+    }
+
+    /** Returns the number of runs spilled to disk. */
+    int getSpills() {
+        return mRuns.size();
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(mBuffer, mComparator);
+        File file = File.createTempFile("kanji2anki-sort", ".tmp", mTempDir);
+        // Add the run before writing it, so close() deletes the file even if writing fails.
+        mRuns.add(new Run(file, mBuffer.size()));
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            for (T record : mBuffer) {
+                mCodec.write(out, record);
+            }
+        } finally {
+            out.close();
+        }
+        mBuffer.clear();
+    }
+
+    /**
+     * Call after adding all the records and before calling next().
+     */
+    void finish() throws IOException {
+        if (mRuns.isEmpty()) {
+            Collections.sort(mBuffer, mComparator);
+            return;
+        }
+        if (!mBuffer.isEmpty()) {
+            spill();
+        }
+        mMerge = new PriorityQueue<Run>(mRuns.size(), new Comparator<Run>() {
+            public int compare(Run a, Run b) {
+                return mComparator.compare(a.mHead, b.mHead);
+            }
+        });
+        for (Run run : mRuns) {
+            run.mIn = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(run.mFile)));
+            if (run.advance()) {
+                mMerge.add(run);
+            }
+        }
+    }
+
+    /**
+     * Returns the next record in sorted order, or null if there are no more.
+     */
+    T next() throws IOException {
+        if (mMerge == null) {
+            return (mNext < mBuffer.size()) ? mBuffer.get(mNext++) : null;
+        }
+        Run run = mMerge.poll();
+        if (run == null) {
+            return null;
+        }
+        T record = run.mHead;
+        if (run.advance()) {
+            mMerge.add(run);
+        }
+        return record;
+    }
+
+    /**
+     * Deletes the temporary files.
+     */
+    @Override
+    public void close() {
+        for (Run run : mRuns) {
+            if (run.mIn != null) {
+                try {
+                    run.mIn.close();
+                } catch (IOException e) {}
+            }
+            run.mFile.delete();
+        }
+        mRuns.clear();
+        mBuffer.clear();
+    }
+
+    /**
+     * Writes a string of any length. DataOutputStream.writeUTF() is limited to 64k.
+     */
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
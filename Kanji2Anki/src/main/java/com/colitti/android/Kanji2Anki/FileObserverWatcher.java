@@ -0,0 +1,50 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import android.os.FileObserver;
+
+import java.io.File;
+
+/**
+ * FileWatcher based on android.os.FileObserver (inotify).
+ */
+public class FileObserverWatcher implements FileWatcher {
+    private static final int EVENTS =
+            FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.CREATE;
+
+    private final File mFile;
+    private FileObserver mObserver;
+
+    public FileObserverWatcher(String path) {
+        mFile = new File(path);
+    }
+
+    @Override
+    public synchronized void start(final Runnable listener) {
+        stop();
+        final String name = mFile.getName();
+        // Keep a reference: the observer stops when it is garbage collected.
+        mObserver = new FileObserver(mFile.getAbsoluteFile().getParent(), EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (name.equals(path)) {
+                    listener.run();
+                }
+            }
+        };
+        mObserver.startWatching();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mObserver != null) {
+            mObserver.stopWatching();
+            mObserver = null;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import java.io.IOException;
+
+/**
+ * Watches a single file for changes.
+ *
+ * Implementations watch the directory containing the file, so that they also notice when the file
+ * is created, or replaced by renaming another file over it.
+ */
+public interface FileWatcher {
+    /**
+     * Starts watching. The listener is called, on an arbitrary thread, every time the file is
+     * written to or replaced; a single change may result in several calls.
+     */
+    void start(Runnable listener) throws IOException;
+
+    void stop();
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import java.text.Normalizer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps card fronts to the keys used to find duplicates, so that fronts that look the same to the
+ * user are treated as the same kanji. The fronts themselves are never changed.
+ *
+ * The mapping:
+ * - full-width ASCII, half-width katakana, CJK compatibility ideographs and Kangxi radicals are
+ *   replaced with what NFKC replaces them with;
+ * - katakana and hiragana followed by a combining (han)dakuten are composed, as NFC does;
+ * - whitespace is trimmed, and runs of it are replaced by a single space;
+ * - zero-width characters and variation selectors are dropped;
+ * - a few itaiji, which JIS and the joyo kanji list treat as the same kanji, are replaced with
+ *   the common form.
+ *
+ * All of this is precomputed into a table when the class is loaded, so normalizing a front is
+ * one table lookup per character, and fronts that don't change are returned as they are.
+ */
+final class FrontNormalizer {
+    // What each BMP character is replaced with, or SLOW_PATH if that's in sReplacements. A high
+    // surrogate is SLOW_PATH if any of the supplementary characters it starts is replaced, so
+    // that fronts with other supplementary characters, e.g., most of CJK Extension B, don't
+    // need normalizing.
+    private static final char SLOW_PATH = 0;
+    private static final char[] sTable = new char[0x10000];
+
+    // What the SLOW_PATH and supplementary characters are replaced with. Not present means not
+    // replaced, " " means whitespace, and "" means dropped.
+    private static final Map<Integer,String> sReplacements = new HashMap<Integer,String>();
+
+    // Kana composed with a following dakuten or handakuten, indexed by kana - KANA_FIRST.
+    private static final int KANA_FIRST = 0x3040;
+    private static final int KANA_LAST = 0x30ff;
+    private static final char[] sDakuten = new char[KANA_LAST - KANA_FIRST + 1];
+    private static final char[] sHandakuten = new char[KANA_LAST - KANA_FIRST + 1];
+    private static final char COMBINING_DAKUTEN = 0x3099;
+    private static final char COMBINING_HANDAKUTEN = 0x309a;
+
+    // Ranges replaced with their NFKC form, if it's a different single character.
+    private static final int[][] NFKC_RANGES = {
+        {0x2e80, 0x2eff},    // CJK Radicals Supplement.
+        {0x2f00, 0x2fdf},    // Kangxi Radicals.
+        {0x3000, 0x3000},    // Ideographic space.
+        {0xf900, 0xfaff},    // CJK Compatibility Ideographs.
+        {0xff00, 0xffef},    // Halfwidth and Fullwidth Forms.
+        {0x2f800, 0x2fa1f},  // CJK Compatibility Ideographs Supplement.
+    };
+
+    private static final int[][] DROPPED_RANGES = {
+        {0x200b, 0x200d},    // Zero-width space, non-joiner and joiner.
+        {0x2060, 0x2060},    // Word joiner.
+        {0xfe00, 0xfe0f},    // Variation selectors.
+        {0xfeff, 0xfeff},    // Byte order mark.
+        {0xe0100, 0xe01ef},  // Ideographic variation selectors.
+    };
+
+    // Variant forms and the form they are replaced with. Kept short on purpose: only pairs that
+    // are unambiguously the same kanji, e.g., print and simplified forms in JIS X 0213:2004.
+    private static final int[][] ITAIJI = {
+        {0x20b9f, 0x53f1},   // 𠮟 -> 叱
+        {0x20bb7, 0x5409},   // 𠮷 -> 吉
+        {0x525d, 0x5265},    // 剝 -> 剥
+        {0x5653, 0x5618},    // 噓 -> 嘘
+        {0x5861, 0x586b},    // 塡 -> 填
+        {0x6451, 0x63b4},    // 摑 -> 掴
+        {0x7626, 0x75e9},    // 瘦 -> 痩
+        {0x7c1e, 0x7baa},    // 簞 -> 箪
+        {0x7e6b, 0x7e4b},    // 繫 -> 繋
+        {0x8523, 0x848b},    // 蔣 -> 蒋
+        {0x91ac, 0x91a4},    // 醬 -> 醤
+        {0x9830, 0x982c},    // 頰 -> 頬
+        {0x9ad9, 0x9ad8},    // 髙 -> 高
+        {0xfa11, 0x5d0e},    // 﨑 -> 崎
+    };
+
+    static {
+        for (int c = 0; c < sTable.length; c++) {
+            sTable[c] = (char) c;
+        }
+
+        for (int[] range : NFKC_RANGES) {
+            for (int c = range[0]; c <= range[1]; c++) {
+                String s = new String(Character.toChars(c));
+                String normalized = Normalizer.normalize(s, Normalizer.Form.NFKC);
+                // Skip the few that decompose, e.g., U+FFE3 is a space and a combining macron.
+                if (!normalized.equals(s) &&
+                        normalized.codePointCount(0, normalized.length()) == 1) {
+                    // E.g., compatibility ideographs for the variant forms.
+                    replace(c, variant(normalized));
+                }
+            }
+        }
+        for (int c = 0; c < sTable.length; c++) {
+            if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+                replace(c, " ");
+            }
+        }
+        for (int[] range : DROPPED_RANGES) {
+            for (int c = range[0]; c <= range[1]; c++) {
+                replace(c, "");
+            }
+        }
+        for (int[] pair : ITAIJI) {
+            replace(pair[0], new String(Character.toChars(pair[1])));
+        }
+
+        // Combining marks need to look at the previous character.
+        sTable[COMBINING_DAKUTEN] = SLOW_PATH;
+        sTable[COMBINING_HANDAKUTEN] = SLOW_PATH;
+        for (int c = KANA_FIRST; c <= KANA_LAST; c++) {
+            sDakuten[c - KANA_FIRST] = compose((char) c, COMBINING_DAKUTEN);
+            sHandakuten[c - KANA_FIRST] = compose((char) c, COMBINING_HANDAKUTEN);
+        }
+    }
+
+    private FrontNormalizer() {}
+
+    /** Returns the common form of s if s is one of the ITAIJI, or s otherwise. */
+    private static String variant(String s) {
+        for (int[] pair : ITAIJI) {
+            if (s.codePointCount(0, s.length()) == 1 && s.codePointAt(0) == pair[0]) {
+                return new String(Character.toChars(pair[1]));
+            }
+        }
+        return s;
+    }
+
+    private static void replace(int c, String replacement) {
+        if (c < sTable.length && replacement.length() == 1 && replacement.charAt(0) != ' ') {
+            sTable[c] = replacement.charAt(0);
+        } else {
+            if (c < sTable.length) {
+                sTable[c] = SLOW_PATH;
+            } else {
+                sTable[Character.highSurrogate(c)] = SLOW_PATH;
+            }
+            sReplacements.put(c, replacement);
+        }
+    }
+
+    /** Returns what NFC composes kana and mark into, or 0 if it doesn't compose them. */
+    private static char compose(char kana, char mark) {
+        String composed = Normalizer.normalize("" + kana + mark, Normalizer.Form.NFC);
+        return (composed.length() == 1) ? composed.charAt(0) : 0;
+    }
+
+    /**
+     * Returns the key used to compare the specified front with others. If the front doesn't
+     * need normalizing, returns the same String object.
+     */
+    static String normalize(String front) {
+        int length = front.length();
+        int i = 0;
+        while (i < length) {
+            char c = front.charAt(i);
+            if (sTable[c] != c) {
+                break;
+            }
+            i++;
+        }
+        return (i == length) ? front : normalize(front, i);
+    }
+
+    private static String normalize(String front, int start) {
+        StringBuilder sb = new StringBuilder(front.length());
+        sb.append(front, 0, start);
+        boolean space = false;  // Whether whitespace was skipped since the last character.
+        int length = front.length();
+        int i = start;
+        while (i < length) {
+            int c = front.codePointAt(i);
+            i += Character.charCount(c);
+
+            // Lone surrogates, and supplementary characters not in sReplacements, stay as they are.
+            String replacement = null;
+            if (c < sTable.length && sTable[c] != SLOW_PATH) {
+                c = sTable[c];
+            } else {
+                replacement = sReplacements.get(c);
+            }
+            if (" ".equals(replacement)) {
+                space = true;
+                continue;
+            }
+            if (replacement != null && replacement.length() == 0) {
+                continue;
+            }
+
+            // The characters before start are never whitespace, so this trims the front.
+            if (space && sb.length() > 0) {
+                sb.append(' ');
+            }
+            space = false;
+            if (replacement != null) {
+                sb.append(replacement);
+            } else {
+                sb.appendCodePoint(c);
+            }
+            composeLast(sb);
+        }
+        return sb.toString();
+    }
+
+    /** If sb ends with kana and a combining (han)dakuten, replaces them with the composed kana. */
+    private static void composeLast(StringBuilder sb) {
+        int last = sb.length() - 1;
+        if (last < 1) {
+            return;
+        }
+        char mark = sb.charAt(last);
+        char kana = sb.charAt(last - 1);
+        if ((mark != COMBINING_DAKUTEN && mark != COMBINING_HANDAKUTEN) ||
+                kana < KANA_FIRST || kana > KANA_LAST) {
+            return;
+        }
+        char composed = (mark == COMBINING_DAKUTEN) ?
+                sDakuten[kana - KANA_FIRST] : sHandakuten[kana - KANA_FIRST];
+        if (composed != 0) {
+            sb.setLength(last - 1);
+            sb.append(composed);
+        }
+    }
+
+    /**
+     * Returns the keys of the specified fronts. If none of the fronts need normalizing, returns
+     * the same Set.
+     */
+    static Set<String> normalizeAll(Set<String> fronts) {
+        Set<String> keys = null;
+        for (String front : fronts) {
+            if (normalize(front) != front) {
+                keys = new HashSet<String>(fronts.size() * 2);
+                break;
+            }
+        }
+        if (keys == null) {
+            return fronts;
+        }
+        for (String front : fronts) {
+            keys.add(normalize(front));
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates note and card IDs.
+ *
+ * Anki IDs are millisecond timestamps and must be unique. We hand out ranges of consecutive IDs
+ * starting at the current time, or just above the highest ID handed out so far (or found in the
+ * collection), whichever is greater. Lock-free, so it can be shared between threads.
+ */
+final class IdAllocator {
+    private final AtomicLong mLast;
+
+    /**
+     * @param highestUsed the highest ID already present in the collection.
+     */
+    IdAllocator(long highestUsed) {
+        mLast = new AtomicLong(highestUsed);
+    }
+
+    /**
+     * Allocates count consecutive IDs.
+     * @return the first ID of the range.
+     */
+    long allocate(int count) {
+        while (true) {
+            long last = mLast.get();
+            long first = Math.max(System.currentTimeMillis(), last + 1);
+            if (mLast.compareAndSet(last, first + count - 1)) {
+                return first;
+            }
+        }
+    }
+
+    /**
+     * Returns the highest ID allocated so far.
+     */
+    long getLast() {
+        return mLast.get();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import java.nio.charset.Charset;
+
+/**
+ * The import file formats we understand, and how to tell them apart.
+ */
+public enum ImportFormat {
+    /** Kanji Recognizer favorites export: 5 quoted, comma-separated fields per line. */
+    KR_CSV(true),
+    /** Tab-separated export: either the 5 Kanji Recognizer fields or kanji, readings, meaning. */
+    TSV(true),
+    /** KANJIDIC2 XML: one <character> element per kanji. */
+    KANJIDIC2(false),
+    /** JMdict XML: one <entry> element per word. */
+    JMDICT(false);
+
+    /** How much of the file sniff() needs to see. */
+    public static final int SNIFF_BYTES = 4096;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final boolean mNewestFirst;
+
+    ImportFormat(boolean newestFirst) {
+        mNewestFirst = newestFirst;
+    }
+
+    /**
+     * Returns true if files in this format list the most recently added kanji first. Kanji
+     * Recognizer exports do, and we add those cards oldest first.
+     */
+    public boolean isNewestFirst() {
+        return mNewestFirst;
+    }
+
+    /**
+     * Determines the format of a file from its first few KB.
+     * @param head the start of the file.
+     * @param length the number of valid bytes in head.
+     * @return the format, or null if the file is not in any format we understand.
+     */
+    public static ImportFormat sniff(byte[] head, int length) {
+        String text = new String(head, 0, Math.max(0, length), UTF_8);
+        int i = 0;
+        // Skip the byte order mark, if any, and leading blank space.
+        while (i < text.length() &&
+                (text.charAt(i) == '\uFEFF' || Character.isWhitespace(text.charAt(i)))) {
+            i++;
+        }
+        if (i == text.length()) {
+            return null;
+        }
+
+        if (text.charAt(i) == '<') {
+            // The root element is usually preceded by a DOCTYPE whose internal subset is much
+            // longer than what we have, so look for the DOCTYPE's name as well.
+            if (text.contains("<!DOCTYPE kanjidic2") || text.contains("<kanjidic2")) {
+                return KANJIDIC2;
+            } else if (text.contains("<!DOCTYPE JMdict") || text.contains("<JMdict")) {
+                return JMDICT;
+            }
+            return null;
+        }
+
+        int end = text.indexOf('\n', i);
+        String firstLine = text.substring(i, end == -1 ? text.length() : end);
+        if (firstLine.indexOf('\t') != -1) {
+            return TSV;
+        } else if (firstLine.indexOf(',') != -1) {
+            return KR_CSV;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+/**
+ * Identifies the notes added by one sync, so that they can be removed again with
+ * CollectionStore.rollback().
+ *
+ * Every note a sync adds is tagged with the session's tag, and every note and card ID it allocates
+ * falls within the session's ID range. Other notes can have IDs in the range (e.g., if AnkiDroid
+ * adds a note while we are syncing), but they don't have the tag. The range lets the rollback
+ * find the notes with a primary key range scan instead of checking the tags of every note.
+ *
+ * Sessions are written as "tag:first-last", e.g., "kanji2anki-1368691979999:1368691980000-
+ * 1368691980199", which is what toString() returns and parse() accepts.
+ */
+public class ImportSession {
+    static final String TAG_PREFIX = "kanji2anki-";
+
+    private final String mTag;
+    private long mFirstId = Long.MAX_VALUE;
+    private long mLastId = Long.MIN_VALUE;
+
+    /**
+     * Starts a new session, tagged with the current time.
+     */
+    public ImportSession() {
+        this(TAG_PREFIX + System.currentTimeMillis());
+    }
+
+    private ImportSession(String tag) {
+        mTag = tag;
+    }
+
+    /**
+     * Parses the output of toString().
+     * @throws IllegalArgumentException if the string is not a session.
+     */
+    public static ImportSession parse(String session) {
+        int colon = session.lastIndexOf(':');
+        int dash = session.lastIndexOf('-');
+        if (!session.startsWith(TAG_PREFIX) || colon == -1 || dash < colon) {
+            throw new IllegalArgumentException("Not an import session: '" + session + "'");
+        }
+        ImportSession result = new ImportSession(session.substring(0, colon));
+        try {
+            result.recordIds(Long.parseLong(session.substring(colon + 1, dash)),
+                    Long.parseLong(session.substring(dash + 1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not an import session: '" + session + "'");
+        }
+        return result;
+    }
+
+    public String getTag() {
+        return mTag;
+    }
+
+    /**
+     * Returns the value of the notes' tags column for notes added by this session. Anki
+     * separates tags with spaces, and puts a space before and after the list.
+     */
+    String getTagsColumn() {
+        return " " + mTag + " ";
+    }
+
+    /**
+     * Returns a LIKE pattern matching the tags column of notes with this session's tag.
+     */
+    String getTagsPattern() {
+        return "% " + mTag + " %";
+    }
+
+    /**
+     * Called by the stores when they allocate IDs for the session's notes and cards.
+     */
+    synchronized void recordIds(long first, long last) {
+        mFirstId = Math.min(mFirstId, first);
+        mLastId = Math.max(mLastId, last);
+    }
+
+    /** Returns whether any IDs were allocated, i.e., whether there is anything to roll back. */
+    public synchronized boolean isEmpty() {
+        return mFirstId > mLastId;
+    }
+
+    public synchronized long getFirstId() {
+        return mFirstId;
+    }
+
+    public synchronized long getLastId() {
+        return mLastId;
+    }
+
+    public synchronized String toString() {
+        return isEmpty() ? mTag : mTag + ":" + mFirstId + "-" + mLastId;
+    }
+}
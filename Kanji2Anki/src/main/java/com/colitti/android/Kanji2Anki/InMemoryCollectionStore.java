@@ -0,0 +1,258 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A collection that only exists in memory.
+ *
+ * Has no storage cost, so it can be used to measure the throughput of the rest of the sync
+ * pipeline, and to run large syncs quickly off-device. All the data structures are lock-free, so
+ * several threads can add cards at once. Contents survive close(), so they can be inspected after
+ * a sync.
+ */
+public class InMemoryCollectionStore implements CollectionStore {
+    public static final String DEFAULT_MODEL_ID = "1";
+
+    /** A note and its single card. */
+    static final class Note {
+        final long mID;
+        final String mModelID;
+        final String mFront;
+        final String mBack;
+        final long mDue;
+        final String mTags;
+
+        Note(long id, String modelID, String front, String back, long due, String tags) {
+            mID = id;
+            mModelID = modelID;
+            mFront = front;
+            mBack = back;
+            mDue = due;
+            mTags = tags;
+        }
+    }
+
+    private final ConcurrentMap<String,Deck> mDecks = new ConcurrentHashMap<String,Deck>();
+    // Deck ID -> notes in that deck, ordered by note ID.
+    private final ConcurrentMap<String,ConcurrentSkipListMap<Long,Note>> mNotes =
+            new ConcurrentHashMap<String,ConcurrentSkipListMap<Long,Note>>();
+    private final ConcurrentMap<String,AtomicLong> mNextDue =
+            new ConcurrentHashMap<String,AtomicLong>();
+    private final IdAllocator mIdAllocator = new IdAllocator(0);
+    private volatile String mDefaultModelID = DEFAULT_MODEL_ID;
+
+    /**
+     * Creates a deck, or returns the existing deck with the same name.
+     */
+    public Deck addDeck(String name) {
+        Deck deck = mDecks.get(name);
+        if (deck == null) {
+            Deck newDeck = new Deck(Long.toString(mIdAllocator.allocate(1)), name);
+            deck = mDecks.putIfAbsent(name, newDeck);
+            if (deck == null) {
+                deck = newDeck;
+            }
+        }
+        return deck;
+    }
+
+    public void setDefaultModelID(String modelID) {
+        mDefaultModelID = modelID;
+    }
+
+    private ConcurrentSkipListMap<Long,Note> notes(String deckId) {
+        ConcurrentSkipListMap<Long,Note> notes = mNotes.get(deckId);
+        if (notes == null) {
+            ConcurrentSkipListMap<Long,Note> newNotes = new ConcurrentSkipListMap<Long,Note>();
+            notes = mNotes.putIfAbsent(deckId, newNotes);
+            if (notes == null) {
+                notes = newNotes;
+            }
+        }
+        return notes;
+    }
+
+    /**
+     * Returns the number of cards in the specified deck.
+     */
+    public int getCardCount(String deckId) {
+        return notes(deckId).size();
+    }
+
+    /**
+     * Does nothing: the collection is always open.
+     */
+    @Override
+    public void open(String filename) {}
+
+    @Override
+    public void openReadOnly(String filename) {}
+
+    @Override
+    public void close() {}
+
+    @Override
+    public Map<String,Deck> getDecks() {
+        return new HashMap<String,Deck>(mDecks);
+    }
+
+    @Override
+    public String getDefaultModelID() {
+        return mDefaultModelID;
+    }
+
+    @Override
+    public Map<String,Card> getCards(String deckId) {
+        Map<String,Card> cards = new HashMap<String,Card>();
+        for (Note note : notes(deckId).values()) {
+            cards.put(note.mFront, new Card(Long.toString(note.mID), note.mFront, note.mBack));
+        }
+        return cards;
+    }
+
+    @Override
+    public List<Card> getCardsPage(String deckId, long beforeNoteId, int limit) {
+        List<Card> cards = new ArrayList<Card>(limit);
+        for (Note note : notes(deckId).headMap(beforeNoteId, false).descendingMap().values()) {
+            if (cards.size() >= limit) {
+                break;
+            }
+            cards.add(new Card(Long.toString(note.mID), note.mFront, note.mBack));
+        }
+        return cards;
+    }
+
+    @Override
+    public Set<String> getFronts(String deckId) {
+        Set<String> fronts = new HashSet<String>();
+        for (Note note : notes(deckId).values()) {
+            fronts.add(note.mFront);
+        }
+        return fronts;
+    }
+
+    @Override
+    public int countCards(String deckId) {
+        return getCardCount(deckId);
+    }
+
+    @Override
+    public FrontCursor openSortedFronts(String deckId, int sortMemory, File tempDir) {
+        final List<String> fronts = new ArrayList<String>(getFronts(deckId));
+        Collections.sort(fronts, ExternalSorter.CODE_POINT_ORDER);
+        return new FrontCursor() {
+            private int mNext;
+
+            public String next() {
+                return (mNext < fronts.size()) ? fronts.get(mNext++) : null;
+            }
+
+            public void close() {}
+        };
+    }
+
+    @Override
+    public long allocateDue(String deckId, int count) {
+        AtomicLong nextDue = mNextDue.get(deckId);
+        if (nextDue == null) {
+            // Like the SQL backends, number the cards in an empty deck from 0.
+            AtomicLong newNextDue = new AtomicLong(0);
+            nextDue = mNextDue.putIfAbsent(deckId, newNextDue);
+            if (nextDue == null) {
+                nextDue = newNextDue;
+            }
+        }
+        return nextDue.getAndAdd(count);
+    }
+
+    @Override
+    public boolean addCards(Deck deck, String modelID, List<Card> cards,
+            ImportSession session) {
+        if (cards.isEmpty()) {
+            return true;
+        }
+        ConcurrentSkipListMap<Long,Note> notes = notes(deck.getID());
+        long due = allocateDue(deck.getID(), cards.size());
+        long id = mIdAllocator.allocate(cards.size());
+        if (session != null) {
+            session.recordIds(id, id + cards.size() - 1);
+        }
+        String tags = (session != null) ? session.getTagsColumn() : "";
+        for (Card card : cards) {
+            notes.put(id, new Note(id, modelID, card.getFront(), card.getBack(), due++, tags));
+            id++;
+        }
+        return true;
+    }
+
+    /**
+     * Notes can't lose their cards here, and checksums aren't stored, so only duplicates and due
+     * values are checked.
+     */
+    @Override
+    public IntegrityReport verify(String deckId) {
+        long start = System.nanoTime();
+        IntegrityReport report = new IntegrityReport();
+        Map<String,Integer> counts = new HashMap<String,Integer>();
+        for (Note note : notes(deckId).values()) {
+            report.mCards++;
+            Integer count = counts.get(note.mFront);
+            counts.put(note.mFront, (count == null) ? 1 : count + 1);
+            if (note.mDue >= Long.parseLong(AnkiSchema.MAGIC_DATE)) {
+                report.mDueCollisions++;
+                if (report.mDueCollisionExamples.size() < IntegrityReport.MAX_EXAMPLES) {
+                    report.mDueCollisionExamples.add(Long.toString(note.mID));
+                }
+            }
+        }
+        for (Map.Entry<String,Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > 1) {
+                report.mDuplicateFronts++;
+                report.mDuplicateCards += entry.getValue();
+                if (report.mDuplicateExamples.size() < IntegrityReport.MAX_EXAMPLES) {
+                    report.mDuplicateExamples.add(entry.getKey());
+                }
+            }
+        }
+        report.mNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    @Override
+    public int rollback(ImportSession session) {
+        if (session.isEmpty()) {
+            return 0;
+        }
+        String tags = session.getTagsColumn();
+        int deleted = 0;
+        for (ConcurrentSkipListMap<Long,Note> notes : mNotes.values()) {
+            Iterator<Note> range = notes.subMap(
+                    session.getFirstId(), true, session.getLastId(), true).values().iterator();
+            while (range.hasNext()) {
+                if (range.next().mTags.contains(tags)) {
+                    range.remove();
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import java.util.List;
+
+import static com.colitti.android.Kanji2Anki.AnkiSchema.*;
+
+/**
+ * Checks the integrity of a deck with the SQL in AnkiSchema, for the SQL backends.
+ *
+ * All the counts come from two aggregate scans: one over the deck's cards joined with their
+ * notes, and one grouping the deck's notes by front. Examples are only fetched for the problems
+ * that were found, so a clean deck costs exactly two queries whatever its size.
+ */
+abstract class IntegrityCheck {
+    /**
+     * Runs a query that returns a single row of integers.
+     * @param sql the query. Its only parameter is the deck ID.
+     */
+    protected abstract long[] queryRow(String sql, String deckId, int columns);
+
+    /**
+     * Runs a query that returns a single column.
+     * @param sql the query. Its parameters are the deck ID and a limit.
+     */
+    protected abstract List<String> queryColumn(String sql, String deckId, int limit);
+
+    IntegrityReport run(String deckId) {
+        long start = System.nanoTime();
+        IntegrityReport report = new IntegrityReport();
+
+        long[] cards = queryRow(SQL_VERIFY_CARDS, deckId, 4);
+        report.mCards = (int) cards[0];
+        report.mOrphanCards = (int) cards[1];
+        report.mZeroChecksums = (int) cards[2];
+        report.mDueCollisions = (int) cards[3];
+
+        long[] duplicates = queryRow(SQL_VERIFY_DUPLICATES, deckId, 2);
+        report.mDuplicateFronts = (int) duplicates[0];
+        report.mDuplicateCards = (int) duplicates[1];
+
+        int limit = IntegrityReport.MAX_EXAMPLES;
+        if (report.mOrphanCards > 0) {
+            report.mOrphanExamples.addAll(queryColumn(SQL_ORPHAN_EXAMPLES, deckId, limit));
+        }
+        if (report.mDuplicateFronts > 0) {
+            report.mDuplicateExamples.addAll(queryColumn(SQL_DUPLICATE_EXAMPLES, deckId, limit));
+        }
+        if (report.mZeroChecksums > 0) {
+            report.mZeroChecksumExamples.addAll(
+                    queryColumn(SQL_ZERO_CSUM_EXAMPLES, deckId, limit));
+        }
+        if (report.mDueCollisions > 0) {
+            report.mDueCollisionExamples.addAll(
+                    queryColumn(SQL_DUE_COLLISION_EXAMPLES, deckId, limit));
+        }
+
+        report.mNanos = System.nanoTime() - start;
+        return report;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The result of CollectionStore.verify(): how many of a deck's cards have each kind of problem,
+ * and a few examples of each.
+ */
+public class IntegrityReport {
+    /** How many examples of each problem to include. */
+    public static final int MAX_EXAMPLES = 10;
+
+    public int mCards;
+    public int mOrphanCards;       // Cards whose note does not exist.
+    public int mDuplicateFronts;   // Fronts shared by more than one card in the deck.
+    public int mDuplicateCards;    // Cards with one of those fronts.
+    public int mZeroChecksums;     // Notes with csum = 0, which Anki's duplicate check can't see.
+    public int mDueCollisions;     // New cards whose due value is >= MAGIC_DATE, i.e., looks like
+                                   // a timestamp instead of a position.
+    public long mNanos;
+
+    // Card IDs for orphans and due collisions, fronts for duplicates, note IDs for checksums.
+    public final List<String> mOrphanExamples = new ArrayList<String>();
+    public final List<String> mDuplicateExamples = new ArrayList<String>();
+    public final List<String> mZeroChecksumExamples = new ArrayList<String>();
+    public final List<String> mDueCollisionExamples = new ArrayList<String>();
+
+    public boolean isClean() {
+        return mOrphanCards == 0 && mDuplicateCards == 0 && mZeroChecksums == 0 &&
+                mDueCollisions == 0;
+    }
+
+    private static void append(StringBuilder sb, String name, int count, List<String> examples) {
+        if (count == 0) {
+            return;
+        }
+        sb.append(' ').append(name).append('=').append(count);
+        if (!examples.isEmpty()) {
+            sb.append(' ').append(examples);
+        }
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("cards=").append(mCards);
+        append(sb, "orphans", mOrphanCards, mOrphanExamples);
+        append(sb, "duplicate-fronts", mDuplicateFronts, mDuplicateExamples);
+        append(sb, "duplicate-cards", mDuplicateCards, new ArrayList<String>());
+        append(sb, "zero-csum", mZeroChecksums, mZeroChecksumExamples);
+        append(sb, "due-collisions", mDueCollisions, mDueCollisionExamples);
+        sb.append(isClean() ? " ok" : " PROBLEMS");
+        sb.append(" in ").append(mNanos / 1000000).append("ms");
+        return sb.toString();
+    }
+}
@@ -6,10 +6,7 @@
  */
 package com.colitti.android.Kanji2Anki;
 
-import android.util.Log;
-
 import java.util.ArrayList;
-import java.lang.Character.UnicodeBlock;
 
 
 public class Kanji {
@@ -52,26 +49,56 @@ public class Kanji {
         return mMeaning;
     }
 
-    private boolean firstLetterInUnicodeBlock(String word, UnicodeBlock block) {
-        // Skip any leading symbols.
+    /**
+     * Returns the time the kanji was added to the export, or -1 if the export does not say.
+     */
+    public long getTimestamp() {
+        try {
+            return Long.parseLong(mTimestamp.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static final int READING_ON = 0;
+    static final int READING_KUN = 1;
+    static final int READING_UNKNOWN = 2;
+
+    // The code point ranges of UnicodeBlock.HIRAGANA and UnicodeBlock.KATAKANA.
+    private static final int HIRAGANA_FIRST = 0x3040;
+    private static final int HIRAGANA_LAST = 0x309f;
+    private static final int KATAKANA_FIRST = 0x30a0;
+    private static final int KATAKANA_LAST = 0x30ff;
+
+    /**
+     * Classifies a reading by the first letter in it, skipping any leading symbols: katakana for
+     * on'yomi, hiragana for kun'yomi. Compares code point ranges instead of looking up the
+     * UnicodeBlock, and doesn't call Character.isLetter() for ASCII.
+     */
+    static int classifyReading(String word) {
         int i = 0;
         int len = word.length();
         while (i < len) {
             final int codePoint = word.codePointAt(i);
+            if (codePoint < 0x80) {
+                int lower = codePoint | 0x20;
+                if (lower >= 'a' && lower <= 'z') {
+                    return READING_UNKNOWN;
+                }
+                i++;
+                continue;
+            }
             if (Character.isLetter(codePoint)) {
-                break;
+                if (codePoint >= KATAKANA_FIRST && codePoint <= KATAKANA_LAST) {
+                    return READING_ON;
+                } else if (codePoint >= HIRAGANA_FIRST && codePoint <= HIRAGANA_LAST) {
+                    return READING_KUN;
+                }
+                return READING_UNKNOWN;
             }
             i += Character.charCount(codePoint);
         }
-        return i < len && Character.UnicodeBlock.of(word.codePointAt(i)) == block;
-    }
-
-    private boolean isHiragana(String word) {
-        return firstLetterInUnicodeBlock(word, UnicodeBlock.HIRAGANA);
-    }
-
-    private boolean isKatakana(String word) {
-        return firstLetterInUnicodeBlock(word, UnicodeBlock.KATAKANA);
+        return READING_UNKNOWN;
     }
 
     private void appendWord(String word, StringBuilder s) {
@@ -82,7 +109,7 @@ public class Kanji {
     }
 
     private void parseReadings(String readings) {
-        // Log.i(TAG, "'" + mKanji + "': parsing readings: '" + readings + "'");
+        // SyncLog.i(TAG, "'" + mKanji + "': parsing readings: '" + readings + "'");
         String[] words = readings.split(" ");
         StringBuilder onReadings = new StringBuilder();
         StringBuilder kunReadings = new StringBuilder();
@@ -91,21 +118,25 @@ public class Kanji {
         int length = words.length;
         for (int i = 0; i < length; i++) {
             String word = words[i];
-            if (isKatakana(word)) {
-                appendWord(word, onReadings);
-            } else if (isHiragana(word)) {
-                appendWord(word, kunReadings);
-            } else {
-                // ???
-                Log.w(TAG, "Unknown reading '" + word + "' for kanji '" + mKanji + "'");
-                appendWord(word, unknownReadings);
+            switch (classifyReading(word)) {
+                case READING_ON:
+                    appendWord(word, onReadings);
+                    break;
+                case READING_KUN:
+                    appendWord(word, kunReadings);
+                    break;
+                default:
+                    // ???
+                    SyncLog.w(TAG, "Unknown reading '" + word + "' for kanji '" + mKanji + "'");
+                    appendWord(word, unknownReadings);
+                    break;
             }
         }
         mOnReadings = onReadings.toString();
         mKunReadings = kunReadings.toString();
         mUnknownReadings = unknownReadings.toString();
 
-        // Log.i("Kanji", "on='" + mOnReadings + "', kun='" + mKunReadings + "', " +
+        // SyncLog.i("Kanji", "on='" + mOnReadings + "', kun='" + mKunReadings + "', " +
         //       "?='" + mUnknownReadings + "'");
     }
 
@@ -126,6 +157,18 @@ public class Kanji {
         mTimestamp = fields.get(FIELD_TIMESTAMP);
     }
 
+    /**
+     * Creates a kanji from sources that only have the kanji itself, its readings (separated by
+     * spaces, katakana for on'yomi and hiragana for kun'yomi) and its meaning.
+     */
+    public Kanji(String kanji, String readings, String meaning) {
+        mUnknown = "";
+        mKanji = kanji;
+        parseReadings(readings);
+        mMeaning = meaning;
+        mTimestamp = "";
+    }
+
     public String toString() {
         return "Kanji(" + mUnknown + ", " + mKanji +  ", " +
                 mOnReadings + ", " + mKunReadings + ", " + mUnknownReadings +
@@ -0,0 +1,25 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads kanji one at a time from an import file, so that files of any size can be imported
+ * without holding them in memory.
+ */
+public interface KanjiReader extends Closeable {
+    /**
+     * Returns the next kanji in the file.
+     * @return the next kanji, or null at the end of the file.
+     * @throws MalformedRowException if the next entry can't be parsed. The entry is skipped, so
+     *     the caller may call next() again to continue with the following one.
+     * @throws IOException if the file can't be read.
+     */
+    Kanji next() throws IOException;
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Exports an Anki deck as a Kanji Recognizer favorites CSV, i.e., the reverse of a sync.
+ *
+ * The deck is read a page at a time and written as it is read, so decks of any size are exported
+ * in constant memory. Like Kanji Recognizer's own export, the most recently added kanji come
+ * first, so exporting a deck and syncing the result into another deck adds the cards in the same
+ * order.
+ */
+public class KanjiRecognizerExporter {
+    private static final String TAG = "KanjiRecognizerExporter";
+
+    public static final int PAGE_SIZE = 500;
+
+    private static final String BR = "<br>";
+    // Stroke order diagrams added by StrokeOrderMedia.
+    private static final Pattern MEDIA = Pattern.compile("<br><img [^>]*>");
+
+    private final CollectionStore mStore;
+
+    public KanjiRecognizerExporter(CollectionStore store) {
+        mStore = store;
+    }
+
+    /**
+     * Exports the specified deck to the specified file, overwriting it.
+     * @return the number of cards exported.
+     */
+    public int export(String deckId, String filename) throws IOException {
+        Writer out = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(filename), "UTF-8"));
+        try {
+            return export(deckId, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Exports the specified deck to the specified writer.
+     * @return the number of cards exported.
+     */
+    public int export(String deckId, Writer out) throws IOException {
+        int count = 0;
+        long before = Long.MAX_VALUE;
+        List<Card> page;
+        do {
+            page = mStore.getCardsPage(deckId, before, PAGE_SIZE);
+            for (Card card : page) {
+                writeCard(card, out);
+                before = Long.parseLong(card.mID);
+                count++;
+            }
+        } while (page.size() == PAGE_SIZE);
+        out.flush();
+        SyncLog.i(TAG, "Exported " + count + " cards");
+        return count;
+    }
+
+    /**
+     * Writes a card as a CSV line. The fields are the same as those read by Kanji(): unknown,
+     * kanji, readings, meaning and timestamp. We use the note ID, which is the time the card was
+     * created, as the timestamp.
+     */
+    private static void writeCard(Card card, Writer out) throws IOException {
+        String[] kanjiFields = backToFields(card.getFront(), card.getBack());
+        writeField("", out);
+        out.write(',');
+        writeField(kanjiFields[0], out);
+        out.write(',');
+        writeField(kanjiFields[1], out);
+        out.write(',');
+        writeField(kanjiFields[2], out);
+        out.write(',');
+        writeField(card.mID, out);
+        out.write('\n');
+    }
+
+    /**
+     * Quotes a field. The importer does not support escaped quotes, so drop any quotes in the
+     * field, and keep it on one line.
+     */
+    private static void writeField(String field, Writer out) throws IOException {
+        out.write('"');
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '"') {
+                continue;
+            }
+            out.write(c == '\n' || c == '\r' ? ' ' : c);
+        }
+        out.write('"');
+    }
+
+    /**
+     * Removes the media that SyncEngine attaches to the back of new cards.
+     */
+    static String stripMedia(String back) {
+        return MEDIA.matcher(back).replaceAll("");
+    }
+
+    /**
+     * Maps the back of a card created by Card(Kanji) back to the kanji, readings and meaning.
+     *
+     * The back is "kanji FIELD_SEPARATOR onyomi<br>kunyomi unknown<br>meaning". Cards that were
+     * not created by us just have everything after the kanji exported as the meaning.
+     */
+    static String[] backToFields(String front, String back) {
+        String kanji = front;
+        String rest = back;
+        int separator = back.indexOf(Card.FIELD_SEPARATOR);
+        if (separator != -1) {
+            kanji = back.substring(0, separator);
+            rest = back.substring(separator + 1);
+        }
+
+        rest = stripMedia(rest);
+        String[] parts = rest.split(BR, 3);
+        if (parts.length < 3) {
+            return new String[] { kanji, "", rest.replace(BR, " ").trim() };
+        }
+        // Card(Kanji) separates the kun and unknown readings with a space even if either is empty.
+        String readings = (parts[0] + " " + parts[1]).trim().replaceAll(" +", " ");
+        return new String[] { kanji, readings, parts[2] };
+    }
+}
@@ -9,7 +9,6 @@ package com.colitti.android.Kanji2Anki;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.SQLException;
 import android.os.Bundle;
 import android.app.Activity;
 import android.preference.PreferenceManager;
@@ -19,26 +18,23 @@ import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
 
-import java.util.List;
-import java.util.Map;
-
 import android.widget.TextView;
 import android.app.AlertDialog;
 
-import org.json.JSONException;
-
 public class MainActivity extends Activity {
 
     public static final String TAG = "kanji2anki";
 
-    private KanjiRecognizerImporter mImporter;
-    private AnkiDroidSyncer mSyncer;
-    Map<String,Deck> mDecks;
-    private List<Kanji> mKanjiList;
+    // How many entries of each kind to list in the dry run dialog.
+    private static final int DRY_RUN_ITEMS = 30;
+
+    private volatile SyncEngine mEngine;
+    private volatile SyncPrewarm mPrewarm;
 
     // For the progress meter.
     private String mCurrentKanji;
     private int mCurrentProgress;
+    private int mTotal;
     private Runnable mProgressUpdater = new Runnable() {
         public void run() {
             mCurrentKanjiText.setText(mCurrentKanji);
@@ -54,90 +50,67 @@ public class MainActivity extends Activity {
     private TextView mProgressMaxText;
     private boolean mStopped;
 
-    private void runSync() {
-        mImporter = new KanjiRecognizerImporter();
-        mSyncer = new AnkiDroidSyncer();
-
-        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
-
-        String importFile = settings.getString("import_file", "");
-        Log.i(TAG, "Setting input file to: " + importFile);
-        mImporter.setFilename(importFile);
-        if (!mImporter.fileLooksValid()) {
-            notifyError("Error reading input file '" + importFile + "'");
-            return;
+    private static final SyncLog.Sink LOGCAT_SINK = new SyncLog.Sink() {
+        public void log(int level, String tag, String msg) {
+            if (level == SyncLog.ERROR) {
+                Log.e(tag, msg);
+            } else if (level == SyncLog.WARN) {
+                Log.w(tag, msg);
+            } else {
+                Log.i(tag, msg);
+            }
         }
+    };
 
-        String exportFile = settings.getString("export_file", "");
-        try {
-            Log.i(TAG, "Setting export file to: " + exportFile);
-            mSyncer.setFilename(exportFile);
-        } catch(SQLException e) {
-            notifyError("Can't open database " + exportFile + "'");
-            return;
+    private final SyncEngine.Listener mSyncListener = new SyncEngine.Listener() {
+        public void onStart(int total) {
+            mTotal = total;
+            mCurrentProgress = 0;
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    initProgress();
+                }
+            });
         }
 
-        String deckName = settings.getString("export_deck", "");
-        Log.i(TAG, "Setting output deck to: " + deckName);
+        public void onProgress(String kanji, int current) {
+            try {
+                Thread.sleep(0, 500000); // Yield to the UI thread, even though we're low priority.
+            } catch(InterruptedException e) {}
 
-        try {
-            mDecks = mSyncer.getDecks();
-        } catch(JSONException e) {
-            notifyError("Can't find any decks in file '" + exportFile + "'");
-            return;
+            mCurrentKanji = kanji;
+            mCurrentProgress = current;
+            runOnUiThread(mProgressUpdater);
         }
+    };
 
-        Deck deck = mDecks.get(deckName);
-        if (deck == null) {
-            notifyError("Can't find deck '" + deckName + "' in file '" + exportFile + "'");
-            return;
-        }
+    private void runSync() {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
 
-        String deckId = deck.getID();
+        mEngine = SyncPreferences.newEngine(settings, false);
+        mEngine.setTempDir(getCacheDir());
+        mEngine.setPrewarm(mPrewarm);
+        mEngine.setListener(mSyncListener);
 
-        // Get the lowest model ID.
-        String modelID;
+        SyncStats stats;
         try {
-            modelID = mSyncer.getDefaultModelID();
-        } catch(JSONException e) {
-            notifyError("Can't determine card type.");
+            stats = mEngine.run();
+        } catch (SyncException e) {
+            notifyError(e.getMessage());
             return;
         }
-
-        // Read the export file.
-        try {
-            mKanjiList = mImporter.readFile();
-        } catch(Exception e) {
-            notifyError("Error reading " + mImporter.getFilename());
+        SyncPreferences.saveThroughput(settings, stats);
+        SyncPreferences.saveSession(settings, stats);
+        if (stats.mCancelled) {
             return;
         }
+        SyncPreferences.saveCheckpoint(settings, stats);
+        // The deck has changed, so the prewarm was used up. Get ready for the next sync.
+        startPrewarm();
 
-        runOnUiThread(new Runnable() {
-            public void run() {
-                initProgress();
-            }
-        });
-
-        // Add the cards.
-        Map <String,Card> cards = mSyncer.getCards(deckId);
-        mCurrentProgress = 0;
-        for (int i = mKanjiList.size() - 1; i >= 0; i--) {
-            Kanji kanji = mKanjiList.get(i);
-            if (mStopped)
-                return;
-            try {
-                Thread.sleep(0, 500000); // Yield to the UI thread, even though we're low priority.
-            } catch(InterruptedException e) {}
-
-            String kanjiStr = kanji.getKanji();
-            mCurrentKanji = kanjiStr;
-            mCurrentProgress++;
-            if (!cards.containsKey(kanjiStr)) {
-                Card card = new Card(kanji);
-                mSyncer.addCard(deck, modelID, card);
-            }
-
-            runOnUiThread(mProgressUpdater);
+        if (stats.mIntegrity != null && !stats.mIntegrity.isClean()) {
+            showMessage(getString(R.string.integrity_problems, stats.mIntegrity));
+            return;
         }
 
         runOnUiThread(new Runnable() {
@@ -147,6 +120,19 @@ public class MainActivity extends Activity {
         });
     }
 
+    /**
+     * Starts loading the collection and the import file in the background, so that pressing the
+     * sync button can start adding cards immediately.
+     */
+    private void startPrewarm() {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+        SyncPrewarm old = mPrewarm;
+        if (old != null) {
+            old.cancel();
+        }
+        mPrewarm = SyncPreferences.newEngine(settings, false).startPrewarm(new AnkiDroidSyncer());
+    }
+
     protected void onResume() {
         mStopped = false;
         super.onResume();
@@ -155,12 +141,19 @@ public class MainActivity extends Activity {
     protected void onPause() {
         super.onPause();
         mStopped = true;
+        if (mEngine != null) {
+            mEngine.cancel();
+        }
     }
 
     private void notifyError(String message) {
+        Log.e(TAG, message);
+        showMessage(message);
+    }
+
+    private void showMessage(String message) {
         final Activity activity = this;
         final String msg = message;
-        Log.e(TAG, msg);
         runOnUiThread(new Runnable() {
             public void run() {
                 onSyncDone();
@@ -178,10 +171,64 @@ public class MainActivity extends Activity {
         });
     }
 
+    private void runDryRun() {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+        SyncEngine engine = SyncPreferences.newEngine(settings, false);
+        // Planning doesn't use up the prewarm, so the sync that usually follows can still use it.
+        engine.setPrewarm(mPrewarm);
+        SyncPlan plan;
+        try {
+            plan = engine.plan(SyncPreferences.loadThroughput(settings));
+        } catch (SyncException e) {
+            notifyError(e.getMessage());
+            return;
+        }
+        showMessage(plan.describe(DRY_RUN_ITEMS));
+    }
+
+    private void runUndo() {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+        ImportSession session = SyncPreferences.loadSession(settings);
+        if (session == null) {
+            showMessage(getString(R.string.undo_nothing));
+            return;
+        }
+        int deleted;
+        try {
+            deleted = SyncPreferences.newEngine(settings, false).rollback(session);
+        } catch (SyncException e) {
+            notifyError(e.getMessage());
+            return;
+        }
+        SyncPreferences.clearSession(settings);
+        startPrewarm();
+        showMessage(getString(R.string.undo_done, deleted));
+    }
+
     private void onSyncDone() {
         mStartButton.setEnabled(true);
     }
 
+    public void onDryRunClicked(MenuItem item) {
+        mStartButton.setEnabled(false);
+        Thread workerThread = new Thread(new Runnable() {
+            public void run() {
+                runDryRun();
+            }
+        });
+        workerThread.start();
+    }
+
+    public void onUndoClicked(MenuItem item) {
+        mStartButton.setEnabled(false);
+        Thread workerThread = new Thread(new Runnable() {
+            public void run() {
+                runUndo();
+            }
+        });
+        workerThread.start();
+    }
+
     public void onSyncButtonClicked(View v) {
         mStartButton.setEnabled(false);
         Thread workerThread = new Thread(new Runnable() {
@@ -205,7 +252,18 @@ public class MainActivity extends Activity {
         mProgressMaxText = (TextView) findViewById(R.id.progress_max);
 
         mStopped = false;
+        SyncLog.setSink(LOGCAT_SINK);
         checkSettings();
+        AutoSyncService.update(this);
+        startPrewarm();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mPrewarm != null) {
+            mPrewarm.cancel();
+        }
     }
 
     @Override
@@ -215,7 +273,7 @@ public class MainActivity extends Activity {
 
     public void checkSettings() {
         SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
-        String importFile = settings.getString("import_file", "");
+        String importFile = settings.getString(SyncPreferences.PREF_IMPORT_FILE, "");
         if (importFile == null || importFile.length() == 0) {
             openSettings(null);
         }
@@ -235,12 +293,14 @@ public class MainActivity extends Activity {
 
     private void initProgress() {
         mProgressCurrentText.setText("0");
-        mProgressMaxText.setText(Integer.toString(mKanjiList.size()));
+        mProgressMaxText.setText(Integer.toString(mTotal));
 
+        // Streamed imports don't know how many kanji there are, so just show the count.
+        int maxVisibility = (mTotal >= 0) ? View.VISIBLE : View.INVISIBLE;
         mCurrentKanjiText.setVisibility(View.VISIBLE);
         mProgressCurrentText.setVisibility(View.VISIBLE);
-        mProgressSlashText.setVisibility(View.VISIBLE);
-        mProgressMaxText.setVisibility(View.VISIBLE);
+        mProgressSlashText.setVisibility(maxVisibility);
+        mProgressMaxText.setVisibility(maxVisibility);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a KanjiReader when an entry in the import file can't be parsed.
+ */
+public class MalformedRowException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int mLine;
+
+    public MalformedRowException(int line, String message) {
+        super("Line " + line + ": " + message);
+        mLine = line;
+    }
+
+    public int getLine() {
+        return mLine;
+    }
+}
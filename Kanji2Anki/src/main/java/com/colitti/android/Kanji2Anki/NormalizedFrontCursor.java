@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reads the normalized fronts (see FrontNormalizer) of a deck for the merge join, in one pass.
+ *
+ * Normalizing rarely changes a front, and the fronts it doesn't change are still in the order
+ * openSortedFronts() returns them, so next() returns those as they are read. The others are
+ * sorted separately, and returned by nextChanged() once finish() has read the rest of the deck.
+ * If no front changes, nothing is sorted.
+ */
+final class NormalizedFrontCursor implements Closeable {
+    private final ExternalSorter<String> mChanged;
+    private CollectionStore.FrontCursor mFronts;
+    private String mLastChanged;
+
+    /**
+     * @param sortMemory how many fronts to sort in memory before spilling to tempDir.
+     */
+    NormalizedFrontCursor(CollectionStore store, String deckId, int sortMemory, File tempDir) {
+        mChanged = new ExternalSorter<String>(ExternalSorter.CODE_POINT_ORDER,
+                ExternalSorter.STRING_CODEC, sortMemory, tempDir);
+        mFronts = store.openSortedFronts(deckId, sortMemory, tempDir);
+    }
+
+    /**
+     * Returns the next front that normalizing doesn't change, in code point order, or null if
+     * there are no more.
+     */
+    String next() throws IOException {
+        String front;
+        while ((front = mFronts.next()) != null) {
+            String key = FrontNormalizer.normalize(front);
+            if (key == front) {
+                return front;
+            }
+            mChanged.add(key);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the rest of the deck. Call after the last call to next(), and before nextChanged().
+     */
+    void finish() throws IOException {
+        while (next() != null) {}
+        mFronts.close();
+        mFronts = null;
+        mChanged.finish();
+    }
+
+    /**
+     * Returns the next distinct normalized front of the fronts that normalizing changes, in code
+     * point order, or null if there are no more.
+     */
+    String nextChanged() throws IOException {
+        // Several fronts can have the same key, e.g., ﾃﾞ and テ with a combining dakuten.
+        String key;
+        while ((key = mChanged.next()) != null && key.equals(mLastChanged)) {}
+        mLastChanged = key;
+        return key;
+    }
+
+    /** Returns how many of the deck's fronts normalizing changes. Call after finish(). */
+    int getChanged() {
+        return mChanged.size();
+    }
+
+    @Override
+    public void close() {
+        if (mFronts != null) {
+            mFronts.close();
+            mFronts = null;
+        }
+        mChanged.close();
+    }
+}
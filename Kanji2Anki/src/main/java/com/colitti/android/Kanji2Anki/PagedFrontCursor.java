@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FrontCursor for stores whose queries can't return a whole deck, e.g., because of Android's
+ * CursorWindow. Reads the deck a page at a time in note ID order, which the database can seek
+ * to, and sorts the fronts with an ExternalSorter, so no query returns more than one page of
+ * rows and no more than sortMemory fronts are held in memory.
+ *
+ * Paging in front order instead would need no sort here, but nothing indexes the fronts of a
+ * deck, so the database would sort the whole deck again for every page.
+ */
+abstract class PagedFrontCursor implements CollectionStore.FrontCursor {
+    static final int PAGE_SIZE = 2000;
+
+    private final ExternalSorter<String> mSorter;
+    private boolean mSorted;
+    private String mLast;
+
+    PagedFrontCursor(int sortMemory, File tempDir) {
+        mSorter = new ExternalSorter<String>(ExternalSorter.CODE_POINT_ORDER,
+                ExternalSorter.STRING_CODEC, sortMemory, tempDir);
+    }
+
+    /**
+     * Adds the fronts of up to limit notes in the deck, in note ID order, to fronts.
+     * @param afterNoteId the ID of the last note of the previous page, or Long.MIN_VALUE for the
+     *     first page.
+     * @return the ID of the last note added, or afterNoteId if there are no more.
+     */
+    protected abstract long fetch(long afterNoteId, int limit, List<String> fronts);
+
+    private void sort() throws IOException {
+        List<String> page = new ArrayList<String>(PAGE_SIZE);
+        long after = Long.MIN_VALUE;
+        do {
+            page.clear();
+            after = fetch(after, PAGE_SIZE, page);
+            for (String front : page) {
+                mSorter.add(front);
+            }
+        } while (page.size() == PAGE_SIZE);
+        mSorter.finish();
+    }
+
+    @Override
+    public String next() {
+        try {
+            if (!mSorted) {
+                sort();
+                mSorted = true;
+            }
+            // Several notes can have the same front.
+            String front;
+            while ((front = mSorter.next()) != null && front.equals(mLast)) {}
+            mLast = front;
+            return front;
+        } catch (IOException e) {
+            throw new CollectionException("Can't sort the deck's fronts: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        mSorter.close();
+    }
+}
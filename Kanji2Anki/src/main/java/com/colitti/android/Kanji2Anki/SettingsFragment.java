@@ -15,13 +15,15 @@ import android.preference.PreferenceFragment;
 public class SettingsFragment extends PreferenceFragment
         implements SharedPreferences.OnSharedPreferenceChangeListener {
 
-    private static final String PREF_IMPORT_FILE = "import_file";
-    private static final String PREF_EXPORT_FILE = "export_file";
-    private static final String PREF_EXPORT_DECK = "export_deck";
+    private static final String PREF_IMPORT_FILE = SyncPreferences.PREF_IMPORT_FILE;
+    private static final String PREF_EXPORT_FILE = SyncPreferences.PREF_EXPORT_FILE;
+    private static final String PREF_EXPORT_DECK = SyncPreferences.PREF_EXPORT_DECK;
+    private static final String PREF_STROKE_ARCHIVE = SyncPreferences.PREF_STROKE_ARCHIVE;
 
     private EditTextPreference mImportFile;
     private EditTextPreference mExportFile;
     private EditTextPreference mExportDeck;
+    private EditTextPreference mStrokeArchive;
 
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -30,10 +32,12 @@ public class SettingsFragment extends PreferenceFragment
         mImportFile = (EditTextPreference) findPreference(PREF_IMPORT_FILE);
         mExportFile = (EditTextPreference) findPreference(PREF_EXPORT_FILE);
         mExportDeck = (EditTextPreference) findPreference(PREF_EXPORT_DECK);
+        mStrokeArchive = (EditTextPreference) findPreference(PREF_STROKE_ARCHIVE);
 
         mImportFile.setSummary(checkNull(mImportFile.getText()));
         mExportFile.setSummary(checkNull(mExportFile.getText()));
         mExportDeck.setSummary(checkNull(mExportDeck.getText()));
+        mStrokeArchive.setSummary(checkNull(mStrokeArchive.getText()));
     }
 
     private String checkNull(String s) {
@@ -60,8 +64,11 @@ public class SettingsFragment extends PreferenceFragment
 
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
         Preference pref = findPreference(key);
-        if (pref != null) {
+        if (pref instanceof EditTextPreference) {
             pref.setSummary(checkNull(sharedPreferences.getString(key, "")));
         }
+        if (key.equals(SyncPreferences.PREF_AUTO_SYNC) || key.equals(PREF_IMPORT_FILE)) {
+            AutoSyncService.update(getActivity());
+        }
     }
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Copies stroke order diagrams from a KanjiVG archive into the collection's media directory.
+ *
+ * The KanjiVG zip contains one SVG per kanji, named after its code point in hex, e.g.,
+ * kanji/05357.svg for 南. Media files are named after the code point and the CRC of the SVG,
+ * which the zip's central directory already has, so files are content-addressed without reading
+ * them: an existing file always has the right contents and is never rewritten.
+ *
+ * The copies run on a small thread pool while the cards are being added, and stream straight from
+ * the archive to the media file through a FileChannel. AnkiDroid picks up the new files the next
+ * time it checks media.
+ */
+public class StrokeOrderMedia {
+    private static final String TAG = "StrokeOrderMedia";
+
+    private static final int IO_THREADS = 2;
+    private static final long FINISH_TIMEOUT_SECONDS = 60;
+
+    private final ZipFile mArchive;
+    private final File mMediaDir;
+    // Code point -> archive entry. Only the standard diagrams, not the variants.
+    private final Map<Integer,ZipEntry> mEntries = new HashMap<Integer,ZipEntry>();
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(IO_THREADS);
+    private final AtomicInteger mCopied = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+
+    /**
+     * Returns the media directory of the specified collection.
+     */
+    public static File getMediaDir(String collectionFile) {
+        File parent = new File(collectionFile).getAbsoluteFile().getParentFile();
+        return new File(parent, "collection.media");
+    }
+
+    public StrokeOrderMedia(String archive, File mediaDir) throws IOException {
+        mArchive = new ZipFile(archive);
+        mMediaDir = mediaDir;
+        Enumeration<? extends ZipEntry> entries = mArchive.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            int codePoint = codePointOf(entry.getName());
+            if (codePoint != -1) {
+                mEntries.put(codePoint, entry);
+            }
+        }
+        if (!mMediaDir.isDirectory() && !mMediaDir.mkdirs()) {
+            mArchive.close();
+            throw new IOException("Can't create media directory " + mMediaDir);
+        }
+        SyncLog.i(TAG, "Found " + mEntries.size() + " diagrams in " + archive);
+    }
+
+    /**
+     * Returns the code point that a KanjiVG entry is for, e.g., 0x5357 for "kanji/05357.svg", or
+     * -1 if the entry is not a standard diagram.
+     */
+    private static int codePointOf(String name) {
+        if (!name.endsWith(".svg")) {
+            return -1;
+        }
+        int start = name.lastIndexOf('/') + 1;
+        String hex = name.substring(start, name.length() - ".svg".length());
+        if (hex.length() != 5) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(hex, 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Starts copying the stroke order diagram for the specified kanji into the media directory,
+     * unless it is already there.
+     * @return the HTML to append to the back of the card, or null if there is no diagram.
+     */
+    public String attach(String kanji) {
+        if (kanji.length() == 0 || kanji.codePointCount(0, kanji.length()) != 1) {
+            return null;
+        }
+        int codePoint = kanji.codePointAt(0);
+        final ZipEntry entry = mEntries.get(codePoint);
+        if (entry == null) {
+            return null;
+        }
+        String name = String.format("kanjivg_%05x_%08x.svg", codePoint, entry.getCrc());
+        final File target = new File(mMediaDir, name);
+        if (!target.exists()) {
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    copy(entry, target);
+                }
+            });
+        }
+        return "<br><img src=\"" + name + "\">";
+    }
+
+    private void copy(ZipEntry entry, File target) {
+        // Write to a temporary file and rename it, so the media directory never contains a
+        // partially-written file, even if several syncs are attaching the same diagram.
+        File temp = new File(mMediaDir, "." + target.getName() + "." +
+                Thread.currentThread().getId() + ".tmp");
+        try {
+            InputStream in = mArchive.getInputStream(entry);
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                ReadableByteChannel source = Channels.newChannel(in);
+                FileChannel destination = out.getChannel();
+                long size = entry.getSize();
+                long position = 0;
+                long n;
+                while ((size < 0 || position < size) &&
+                        (n = destination.transferFrom(source, position, 1 << 16)) > 0) {
+                    position += n;
+                }
+            } finally {
+                out.close();
+                in.close();
+            }
+            if (!temp.renameTo(target)) {
+                throw new IOException("Can't rename " + temp + " to " + target);
+            }
+            mCopied.incrementAndGet();
+        } catch (IOException e) {
+            SyncLog.w(TAG, "Error copying " + entry.getName() + ": " + e.getMessage());
+            temp.delete();
+            mFailed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Waits for all the copies to complete and closes the archive.
+     * @return the number of files copied.
+     */
+    public int finish() {
+        mExecutor.shutdown();
+        try {
+            if (!mExecutor.awaitTermination(FINISH_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                SyncLog.w(TAG, "Timed out waiting for media copies");
+                mExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            mExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        try {
+            mArchive.close();
+        } catch (IOException e) {}
+        if (mFailed.get() > 0) {
+            SyncLog.w(TAG, mFailed.get() + " diagrams could not be copied");
+        }
+        return mCopied.get();
+    }
+}
@@ -0,0 +1,851 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import org.json.JSONException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Imports kanji from a Kanji Recognizer export (or any other file KanjiRecognizerImporter can
+ * read) and adds the ones that are not already present to an Anki deck.
+ *
+ * Does not depend on Android: the app runs it on a worker thread against AnkiDroid's collection,
+ * and Kanji2AnkiCli runs it on the desktop against collection files accessed via JDBC.
+ *
+ * Small decks are deduplicated by loading their fronts into a hash set. Decks larger than the
+ * merge-join threshold are deduplicated without loading them: the import is sorted by front
+ * (spilling to disk if it is large), merged against the deck's fronts read in the same order,
+ * and the new cards are then put back in import order before being added. This keeps memory
+ * use bounded by the sort memory setting, however large the deck and the import file are.
+ *
+ * Either way, fronts are compared after FrontNormalizer has normalized them, so that, e.g., a
+ * full-width or compatibility form of a kanji already in the deck is not added again.
+ *
+ * At most one run() or rollback() at a time modifies a given collection, however many engines
+ * there are in the process: a manual sync and an auto sync that overlapped would both find the
+ * same new entries and add them twice. Syncs to different collections run in parallel.
+ */
+public class SyncEngine {
+    private static final String TAG = "SyncEngine";
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_MERGE_JOIN_THRESHOLD = 20000;
+    public static final int DEFAULT_SORT_MEMORY = 10000;
+
+    /**
+     * Receives progress updates. Called on the thread that calls run().
+     */
+    public interface Listener {
+        /**
+         * Called before the first kanji is processed.
+         * @param total the number of kanji in the import file, or -1 if not known in advance.
+         */
+        void onStart(int total);
+        /** Called after each kanji is processed, whether it was added or not. */
+        void onProgress(String kanji, int current);
+    }
+
+    private final CollectionStore mStore;
+    private final KanjiRecognizerImporter mImporter;
+
+    private String mImportFile;
+    private String mCollectionFile;
+    private String mDeckName;
+    private String mModelID;
+    private int mBatchSize = DEFAULT_BATCH_SIZE;
+    private long mMinTimestamp = -1;
+    private String mStrokeOrderArchive;
+    private int mMergeJoinThreshold = DEFAULT_MERGE_JOIN_THRESHOLD;
+    private int mSortMemory = DEFAULT_SORT_MEMORY;
+    private File mTempDir;
+    private SyncPrewarm mPrewarm;
+    private boolean mVerify;
+    private Listener mListener;
+
+    private volatile boolean mCancelled;
+    private long mStartNanos;
+
+    /** The lock for one collection file, and how many engines hold it or wait for it. */
+    private static class CollectionLock {
+        final String mKey;
+        final ReentrantLock mLock = new ReentrantLock();
+        int mUsers;  // Protected by sCollectionLocks.
+
+        CollectionLock(String key) {
+            mKey = key;
+        }
+    }
+
+    // The locks of the collection files being synced, by canonical path. A lock is removed when
+    // its last user unlocks it, so that a process that syncs many collections doesn't keep one
+    // for each. Protected by itself.
+    private static final Map<String,CollectionLock> sCollectionLocks =
+            new HashMap<String,CollectionLock>();
+
+    public SyncEngine(CollectionStore store) {
+        mStore = store;
+        mImporter = new KanjiRecognizerImporter();
+    }
+
+    public void setImportFile(String importFile) {
+        mImportFile = importFile;
+    }
+
+    public void setCollectionFile(String collectionFile) {
+        mCollectionFile = collectionFile;
+    }
+
+    public void setDeckName(String deckName) {
+        mDeckName = deckName;
+    }
+
+    /**
+     * Sets the model (card type) to use. If not set, the store's default model is used.
+     */
+    public void setModelID(String modelID) {
+        mModelID = modelID;
+    }
+
+    /**
+     * Sets the number of cards added per transaction.
+     */
+    public void setBatchSize(int batchSize) {
+        mBatchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Makes the sync incremental: entries with a timestamp no newer than the specified one were
+     * synced before and are skipped without being looked up in the deck. Pass the
+     * SyncStats.mMaxTimestamp of the previous sync, or -1 to consider every entry.
+     */
+    public void setMinTimestamp(long minTimestamp) {
+        mMinTimestamp = minTimestamp;
+    }
+
+    /**
+     * Attaches stroke order diagrams from the specified KanjiVG zip to the new cards. See
+     * StrokeOrderMedia.
+     */
+    public void setStrokeOrderArchive(String archive) {
+        mStrokeOrderArchive = archive;
+    }
+
+    /**
+     * Sets the deck size above which duplicates are found by merging sorted fronts instead of
+     * loading all of the deck's fronts into memory.
+     */
+    public void setMergeJoinThreshold(int cards) {
+        mMergeJoinThreshold = Math.max(0, cards);
+    }
+
+    /**
+     * Sets how many import entries the merge join sorts in memory before spilling to disk.
+     */
+    public void setSortMemory(int entries) {
+        mSortMemory = Math.max(1, entries);
+    }
+
+    /**
+     * Sets the directory for the merge join's temporary files. If not set, the system default
+     * temporary directory is used.
+     */
+    public void setTempDir(File tempDir) {
+        mTempDir = tempDir;
+    }
+
+    /**
+     * Starts loading, in the background, what a sync with the current settings needs before it
+     * can add the first card. Pass the result to setPrewarm() on the engine that runs the sync.
+     * @param store a store that is not used by any sync. See SyncPrewarm.
+     */
+    public SyncPrewarm startPrewarm(CollectionStore store) {
+        SyncPrewarm prewarm = new SyncPrewarm(store, mImportFile, mCollectionFile, mDeckName,
+                mModelID, mMergeJoinThreshold);
+        prewarm.start();
+        return prewarm;
+    }
+
+    /**
+     * Uses the results of the specified prewarm, if they are still valid.
+     */
+    public void setPrewarm(SyncPrewarm prewarm) {
+        mPrewarm = prewarm;
+    }
+
+    /**
+     * Checks the integrity of the deck after syncing, and reports the result in
+     * SyncStats.mIntegrity. See CollectionStore.verify().
+     */
+    public void setVerify(boolean verify) {
+        mVerify = verify;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Stops a running sync, or prevents one from starting. Cards already added stay in the deck.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Runs the sync.
+     * @return statistics about the sync.
+     * @throws SyncException if the sync could not be completed.
+     */
+    public SyncStats run() throws SyncException {
+        CollectionLock lock = lockCollection();
+        try {
+            return runLocked();
+        } finally {
+            unlockCollection(lock);
+        }
+    }
+
+    /**
+     * Waits until no other engine is modifying the collection, and locks it.
+     * @return the lock, which the caller must pass to unlockCollection().
+     */
+    private CollectionLock lockCollection() {
+        File file = new File(mCollectionFile);
+        String key;
+        try {
+            key = file.getCanonicalPath();
+        } catch (IOException e) {
+            key = file.getAbsolutePath();
+        }
+        CollectionLock lock;
+        synchronized (sCollectionLocks) {
+            lock = sCollectionLocks.get(key);
+            if (lock == null) {
+                lock = new CollectionLock(key);
+                sCollectionLocks.put(key, lock);
+            }
+            lock.mUsers++;
+        }
+        if (!lock.mLock.tryLock()) {
+            SyncLog.i(TAG, "Waiting for another sync of " + mCollectionFile + " to finish");
+            lock.mLock.lock();
+        }
+        return lock;
+    }
+
+    private static void unlockCollection(CollectionLock lock) {
+        lock.mLock.unlock();
+        synchronized (sCollectionLocks) {
+            if (--lock.mUsers == 0) {
+                sCollectionLocks.remove(lock.mKey);
+            }
+        }
+    }
+
+    private SyncStats runLocked() throws SyncException {
+        SyncStats stats = new SyncStats();
+        stats.mSession = new ImportSession();
+        mStartNanos = System.nanoTime();
+
+        SyncPrewarm.Snapshot snapshot = null;
+        if (mPrewarm != null) {
+            snapshot = mPrewarm.take(mImportFile, mCollectionFile, mDeckName, mModelID,
+                    mMergeJoinThreshold);
+            mPrewarm = null;
+        }
+
+        SyncLog.i(TAG, "Setting input file to: " + mImportFile);
+        mImporter.setFilename(mImportFile);
+        if (snapshot == null && !mImporter.fileLooksValid()) {
+            throw new SyncException("Error reading input file '" + mImportFile + "'");
+        }
+
+        try {
+            SyncLog.i(TAG, "Setting export file to: " + mCollectionFile);
+            mStore.open(mCollectionFile);
+        } catch (CollectionException e) {
+            throw new SyncException("Can't open database " + mCollectionFile + "'");
+        }
+
+        StrokeOrderMedia media = null;
+        if (mStrokeOrderArchive != null) {
+            try {
+                media = new StrokeOrderMedia(mStrokeOrderArchive,
+                        StrokeOrderMedia.getMediaDir(mCollectionFile));
+            } catch (IOException e) {
+                mStore.close();
+                throw new SyncException(
+                        "Can't open stroke order archive '" + mStrokeOrderArchive + "'");
+            }
+        }
+
+        try {
+            sync(stats, media, snapshot);
+        } finally {
+            mStore.close();
+            if (media != null) {
+                stats.mMediaFiles = media.finish();
+            }
+        }
+
+        stats.mTotalNanos = System.nanoTime() - mStartNanos;
+        SyncLog.i(TAG, "Sync done: " + stats);
+        return stats;
+    }
+
+    /**
+     * Deletes the notes and cards added by a previous sync.
+     * @param session the SyncStats.mSession of that sync.
+     * @return the number of notes deleted.
+     * @throws SyncException if the collection can't be opened or the notes can't be deleted.
+     */
+    public int rollback(ImportSession session) throws SyncException {
+        CollectionLock lock = lockCollection();
+        try {
+            try {
+                mStore.open(mCollectionFile);
+            } catch (CollectionException e) {
+                throw new SyncException("Can't open database " + mCollectionFile + "'");
+            }
+            try {
+                return mStore.rollback(session);
+            } catch (CollectionException e) {
+                SyncLog.e(TAG, e.getMessage());
+                throw new SyncException("Can't undo sync " + session.getTag());
+            } finally {
+                mStore.close();
+            }
+        } finally {
+            unlockCollection(lock);
+        }
+    }
+
+    /**
+     * Works out what run() would do, without modifying the collection, which is only opened
+     * read-only. Unlike run(), keeps going past malformed rows, and tells apart entries that are
+     * in the deck with different contents (which run() skips as well). Uses the prewarm passed
+     * to setPrewarm(), if any, without using it up: if it's still valid and loaded the deck, the
+     * collection isn't opened at all.
+     * @param measured the statistics of a previous sync to the same collection, used to estimate
+     *     how long this one would take, or null if there are none.
+     */
+    public SyncPlan plan(SyncStats measured) throws SyncException {
+        long start = System.nanoTime();
+        SyncPlan plan = new SyncPlan();
+
+        SyncPrewarm.Snapshot snapshot = null;
+        if (mPrewarm != null) {
+            snapshot = mPrewarm.peek(mImportFile, mCollectionFile, mDeckName, mModelID,
+                    mMergeJoinThreshold);
+        }
+        Map<String,Card> existing = (snapshot != null) ? snapshot.mCards : null;
+        boolean openStore = (existing == null);
+
+        mImporter.setFilename(mImportFile);
+        KanjiReader reader;
+        try {
+            reader = (snapshot != null) ? mImporter.open(snapshot.mFormat) : mImporter.open();
+        } catch (IOException e) {
+            throw new SyncException("Error reading input file '" + mImportFile + "'");
+        }
+
+        if (openStore) {
+            try {
+                mStore.openReadOnly(mCollectionFile);
+            } catch (CollectionException e) {
+                try {
+                    reader.close();
+                } catch (IOException e2) {}
+                throw new SyncException("Can't open database " + mCollectionFile + "'");
+            }
+        }
+
+        try {
+            if (openStore) {
+                Deck deck = findDeck((snapshot != null) ? snapshot.mDecks : null);
+                existing = byNormalizedFront(mStore.getCards(deck.getID()));
+            }
+            Set<String> seen = new HashSet<String>();
+            if (mImporter.getFormat().isNewestFirst()) {
+                List<Kanji> kanjiList = new ArrayList<Kanji>();
+                Kanji kanji;
+                while ((kanji = readForPlan(reader, plan)) != null) {
+                    kanjiList.add(kanji);
+                }
+                for (int i = kanjiList.size() - 1; i >= 0; i--) {
+                    classify(new Card(kanjiList.get(i)), existing, seen, plan);
+                }
+            } else {
+                Kanji kanji;
+                while ((kanji = readForPlan(reader, plan)) != null) {
+                    classify(new Card(kanji), existing, seen, plan);
+                }
+            }
+        } finally {
+            if (openStore) {
+                mStore.close();
+            }
+            try {
+                reader.close();
+            } catch (IOException e) {}
+        }
+
+        plan.estimate(mBatchSize, measured);
+        plan.mPlanNanos = System.nanoTime() - start;
+        SyncLog.i(TAG, "Plan: " + plan);
+        return plan;
+    }
+
+    /**
+     * Returns the specified cards by their normalized front. Of several cards with the same
+     * normalized front, keeps one.
+     */
+    static Map<String,Card> byNormalizedFront(Map<String,Card> cards) {
+        Map<String,Card> byKey = new HashMap<String,Card>(cards.size() * 2);
+        for (Card card : cards.values()) {
+            String key = FrontNormalizer.normalize(card.mFront);
+            if (!byKey.containsKey(key)) {
+                byKey.put(key, card);
+            }
+        }
+        return byKey;
+    }
+
+    /**
+     * Like read(), but records malformed rows in the plan instead of failing.
+     */
+    private Kanji readForPlan(KanjiReader reader, SyncPlan plan) {
+        while (true) {
+            Kanji kanji;
+            try {
+                kanji = reader.next();
+            } catch (MalformedRowException e) {
+                plan.mMalformed.add(e.getMessage());
+                continue;
+            } catch (IOException e) {
+                // Not a row we can skip, e.g., broken XML. Nothing after it can be read.
+                plan.mMalformed.add(e.getMessage());
+                return null;
+            }
+            if (kanji == null) {
+                return null;
+            }
+            plan.mRead++;
+            long timestamp = kanji.getTimestamp();
+            if (timestamp == -1 || timestamp > mMinTimestamp) {
+                return kanji;
+            }
+            plan.mAlreadySynced++;
+        }
+    }
+
+    private static void classify(Card card, Map<String,Card> existing, Set<String> seen,
+            SyncPlan plan) {
+        String key = FrontNormalizer.normalize(card.mFront);
+        if (!seen.add(key)) {
+            plan.mDuplicates.add(card.mFront);
+            return;
+        }
+        Card old = existing.get(key);
+        if (old == null) {
+            plan.mNew.add(card);
+        } else if (KanjiRecognizerExporter.stripMedia(old.mBack).equals(card.mBack)) {
+            plan.mDuplicates.add(card.mFront);
+        } else {
+            plan.mChanged.add(card);
+        }
+    }
+
+    /**
+     * Finds the deck to sync into.
+     * @param decks the collection's decks, or null to read them from the store.
+     */
+    private Deck findDeck(Map<String,Deck> decks) throws SyncException {
+        if (decks == null) {
+            try {
+                decks = mStore.getDecks();
+            } catch (JSONException e) {
+                throw new SyncException("Can't find any decks in file '" + mCollectionFile + "'");
+            }
+        }
+
+        Deck deck = decks.get(mDeckName);
+        if (deck == null) {
+            throw new SyncException(
+                    "Can't find deck '" + mDeckName + "' in file '" + mCollectionFile + "'");
+        }
+        return deck;
+    }
+
+    private void sync(SyncStats stats, StrokeOrderMedia media, SyncPrewarm.Snapshot snapshot)
+            throws SyncException {
+        SyncLog.i(TAG, "Setting output deck to: " + mDeckName);
+        Deck deck = findDeck((snapshot != null) ? snapshot.mDecks : null);
+
+        // Unless told otherwise, use the lowest model ID.
+        String modelID = (snapshot != null) ? snapshot.mModelID : mModelID;
+        if (modelID == null) {
+            try {
+                modelID = mStore.getDefaultModelID();
+            } catch (JSONException e) {
+                throw new SyncException("Can't determine card type.");
+            }
+        }
+
+        KanjiReader reader;
+        try {
+            reader = (snapshot != null) ? mImporter.open(snapshot.mFormat) : mImporter.open();
+        } catch (IOException e) {
+            throw new SyncException("Error reading " + mImporter.getFilename());
+        }
+        try {
+            int deckSize = (snapshot != null) ?
+                    snapshot.mDeckSize : mStore.countCards(deck.getID());
+            if (deckSize > mMergeJoinThreshold) {
+                SyncLog.i(TAG, "Deck has " + deckSize + " cards, using merge join");
+                CardWriter writer = new CardWriter(deck, modelID, stats, media, null);
+                try {
+                    mergeJoin(reader, writer, stats);
+                } catch (IOException e) {
+                    SyncLog.e(TAG, e.getMessage());
+                    throw new SyncException("Error sorting " + mImporter.getFilename());
+                }
+                writer.flush();
+                verify(deck, stats);
+                return;
+            }
+
+            // The snapshot's fronts are already normalized.
+            Set<String> fronts = (snapshot != null) ? snapshot.mFronts :
+                    FrontNormalizer.normalizeAll(mStore.getFronts(deck.getID()));
+            CardWriter writer = new CardWriter(deck, modelID, stats, media, fronts);
+            if (mImporter.getFormat().isNewestFirst()) {
+                // Add the cards oldest first. This means reading the whole file before adding
+                // anything, but files in these formats are small.
+                List<Kanji> kanjiList = new ArrayList<Kanji>();
+                Kanji kanji;
+                while ((kanji = read(reader, stats)) != null) {
+                    kanjiList.add(kanji);
+                }
+                if (mListener != null) {
+                    mListener.onStart(kanjiList.size());
+                }
+                for (int i = kanjiList.size() - 1; i >= 0; i--) {
+                    if (!writer.add(kanjiList.get(i))) {
+                        break;
+                    }
+                }
+            } else {
+                // Stream the file, so that even very large files are imported in constant memory.
+                if (mListener != null) {
+                    mListener.onStart(-1);
+                }
+                Kanji kanji;
+                while ((kanji = read(reader, stats)) != null) {
+                    if (!writer.add(kanji)) {
+                        break;
+                    }
+                }
+            }
+            writer.flush();
+            verify(deck, stats);
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    /** An import entry waiting to be sorted. */
+    private static class SortEntry {
+        final long mOrder;
+        final String mFront;
+        final String mBack;
+        final String mKey;  // The normalized front. Not written to disk, but recomputed.
+
+        SortEntry(long order, String front, String back) {
+            mOrder = order;
+            mFront = front;
+            mBack = back;
+            mKey = FrontNormalizer.normalize(front);
+        }
+    }
+
+    private static final ExternalSorter.Codec<SortEntry> SORT_ENTRY_CODEC =
+            new ExternalSorter.Codec<SortEntry>() {
+        public void write(DataOutputStream out, SortEntry entry) throws IOException {
+            out.writeLong(entry.mOrder);
+            ExternalSorter.writeString(out, entry.mFront);
+            ExternalSorter.writeString(out, entry.mBack);
+        }
+
+        public SortEntry read(DataInputStream in) throws IOException {
+            return new SortEntry(in.readLong(), ExternalSorter.readString(in),
+                    ExternalSorter.readString(in));
+        }
+    };
+
+    // Sorts by normalized front, and entries with the same one in the order they should be added,
+    // so the first one of each is the one that is kept.
+    private static final Comparator<SortEntry> BY_FRONT = new Comparator<SortEntry>() {
+        public int compare(SortEntry a, SortEntry b) {
+            int result = ExternalSorter.CODE_POINT_ORDER.compare(a.mKey, b.mKey);
+            return (result != 0) ? result : Long.compare(a.mOrder, b.mOrder);
+        }
+    };
+
+    private static final Comparator<SortEntry> BY_ORDER = new Comparator<SortEntry>() {
+        public int compare(SortEntry a, SortEntry b) {
+            return Long.compare(a.mOrder, b.mOrder);
+        }
+    };
+
+    /**
+     * Adds the entries whose fronts are neither in the deck nor earlier in the import, in the same
+     * order as the hash set path would.
+     */
+    private void mergeJoin(KanjiReader reader, CardWriter writer, SyncStats stats)
+            throws SyncException, IOException {
+        boolean newestFirst = mImporter.getFormat().isNewestFirst();
+        ExternalSorter<SortEntry> byFront =
+                new ExternalSorter<SortEntry>(BY_FRONT, SORT_ENTRY_CODEC, mSortMemory, mTempDir);
+        // Entries not in the deck as far as the fronts that normalizing doesn't change go. Added
+        // in front order, so sorting them is cheap.
+        ExternalSorter<SortEntry> candidates =
+                new ExternalSorter<SortEntry>(BY_FRONT, SORT_ENTRY_CODEC, mSortMemory, mTempDir);
+        ExternalSorter<SortEntry> byOrder =
+                new ExternalSorter<SortEntry>(BY_ORDER, SORT_ENTRY_CODEC, mSortMemory, mTempDir);
+        NormalizedFrontCursor existing = null;
+        try {
+            Kanji kanji;
+            long index = 0;
+            while ((kanji = read(reader, stats)) != null) {
+                Card card = new Card(kanji);
+                // Newest-first files are added oldest first.
+                byFront.add(new SortEntry(newestFirst ? -index : index, card.mFront, card.mBack));
+                index++;
+            }
+            byFront.finish();
+
+            existing = new NormalizedFrontCursor(mStore, writer.getDeck().getID(), mSortMemory,
+                    mTempDir);
+            String existingFront = existing.next();
+            String previous = null;
+            SortEntry entry;
+            while ((entry = byFront.next()) != null) {
+                if (mCancelled) {
+                    stats.mCancelled = true;
+                    return;
+                }
+                if (entry.mKey.equals(previous)) {
+                    stats.mSkipped++;
+                    continue;
+                }
+                previous = entry.mKey;
+                while (existingFront != null &&
+                        ExternalSorter.CODE_POINT_ORDER.compare(existingFront, entry.mKey) < 0) {
+                    existingFront = existing.next();
+                }
+                if (entry.mKey.equals(existingFront)) {
+                    stats.mSkipped++;
+                } else {
+                    candidates.add(entry);
+                }
+            }
+
+            // Now that the whole deck has been read, merge against the fronts that normalizing
+            // does change.
+            existing.finish();
+            candidates.finish();
+            String changedFront = existing.nextChanged();
+            while ((entry = candidates.next()) != null) {
+                while (changedFront != null &&
+                        ExternalSorter.CODE_POINT_ORDER.compare(changedFront, entry.mKey) < 0) {
+                    changedFront = existing.nextChanged();
+                }
+                if (entry.mKey.equals(changedFront)) {
+                    stats.mSkipped++;
+                } else {
+                    byOrder.add(entry);
+                }
+            }
+            SyncLog.i(TAG, "Merge join: " + byOrder.size() + " new of " + byFront.size() +
+                    ", " + existing.getChanged() + " deck fronts normalized, " +
+                    (byFront.getSpills() + candidates.getSpills() + byOrder.getSpills()) +
+                    " runs spilled");
+            existing.close();
+            existing = null;
+            byFront.close();
+            candidates.close();
+
+            byOrder.finish();
+            if (mListener != null) {
+                mListener.onStart(byOrder.size());
+            }
+            while ((entry = byOrder.next()) != null) {
+                if (!writer.addNew(new Card(null, entry.mFront, entry.mBack))) {
+                    return;
+                }
+            }
+        } finally {
+            if (existing != null) {
+                existing.close();
+            }
+            byFront.close();
+            candidates.close();
+            byOrder.close();
+        }
+    }
+
+    private void verify(Deck deck, SyncStats stats) {
+        if (!mVerify || stats.mCancelled) {
+            return;
+        }
+        stats.mIntegrity = mStore.verify(deck.getID());
+        if (stats.mIntegrity.isClean()) {
+            SyncLog.i(TAG, "Deck verified: " + stats.mIntegrity);
+        } else {
+            SyncLog.w(TAG, "Deck has problems: " + stats.mIntegrity);
+        }
+    }
+
+    /**
+     * Returns the next kanji that needs to be synced, or null at the end of the file.
+     */
+    private Kanji read(KanjiReader reader, SyncStats stats) throws SyncException {
+        long start = System.nanoTime();
+        try {
+            Kanji kanji;
+            while ((kanji = reader.next()) != null) {
+                stats.mRead++;
+                long timestamp = kanji.getTimestamp();
+                stats.mMaxTimestamp = Math.max(stats.mMaxTimestamp, timestamp);
+                if (timestamp == -1 || timestamp > mMinTimestamp) {
+                    break;
+                }
+                stats.mSkipped++;
+            }
+            return kanji;
+        } catch (IOException e) {
+            SyncLog.e(TAG, e.getMessage());
+            throw new SyncException("Error reading " + mImporter.getFilename());
+        } finally {
+            stats.mReadNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Adds the kanji that are not already in the deck, in batches. If constructed without the
+     * deck's fronts, the caller must check for duplicates and call addNew().
+     */
+    private class CardWriter {
+        private final Deck mDeck;
+        private final String mModelID;
+        private final SyncStats mStats;
+        private final StrokeOrderMedia mMedia;
+        private final Set<String> mFronts;
+        private final List<Card> mBatch = new ArrayList<Card>(mBatchSize);
+        private int mCurrent;
+
+        CardWriter(Deck deck, String modelID, SyncStats stats, StrokeOrderMedia media,
+                Set<String> fronts) {
+            mDeck = deck;
+            mModelID = modelID;
+            mStats = stats;
+            mMedia = media;
+            mFronts = fronts;
+        }
+
+        Deck getDeck() {
+            return mDeck;
+        }
+
+        /**
+         * Adds the specified kanji to the deck, unless it is already there.
+         * @return false if the sync was cancelled, true otherwise.
+         */
+        boolean add(Kanji kanji) throws SyncException {
+            if (mCancelled) {
+                mStats.mCancelled = true;
+                return false;
+            }
+
+            String kanjiStr = kanji.getKanji();
+            mCurrent++;
+            if (mFronts.add(FrontNormalizer.normalize(kanjiStr))) {
+                queue(new Card(kanji));
+            } else {
+                mStats.mSkipped++;
+            }
+
+            if (mListener != null) {
+                mListener.onProgress(kanjiStr, mCurrent);
+            }
+            return true;
+        }
+
+        /**
+         * Adds a card that the caller knows is not in the deck.
+         * @return false if the sync was cancelled, true otherwise.
+         */
+        boolean addNew(Card card) throws SyncException {
+            if (mCancelled) {
+                mStats.mCancelled = true;
+                return false;
+            }
+            mCurrent++;
+            queue(card);
+            if (mListener != null) {
+                mListener.onProgress(card.mFront, mCurrent);
+            }
+            return true;
+        }
+
+        private void queue(Card card) throws SyncException {
+            if (mMedia != null) {
+                // Only queues the copy, so that it overlaps with adding the cards.
+                String html = mMedia.attach(card.mFront);
+                if (html != null) {
+                    card.appendToBack(html);
+                }
+            }
+            mBatch.add(card);
+            if (mBatch.size() >= mBatchSize) {
+                flush();
+            }
+        }
+
+        void flush() throws SyncException {
+            if (mBatch.isEmpty()) {
+                return;
+            }
+            long start = System.nanoTime();
+            if (mStats.mStartupNanos == 0) {
+                mStats.mStartupNanos = start - mStartNanos;
+            }
+            if (!mStore.addCards(mDeck, mModelID, mBatch, mStats.mSession)) {
+                throw new SyncException("Error adding cards to deck '" + mDeck.getName() + "'");
+            }
+            mStats.mWriteNanos += System.nanoTime() - start;
+            mStats.mAdded += mBatch.size();
+            mStats.mBatches++;
+            mBatch.clear();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+/**
+ * Thrown by SyncEngine when a sync cannot be completed. The message is suitable for showing to
+ * the user.
+ */
+public class SyncException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public SyncException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+/**
+ * Logging used by the parts of the sync code that do not depend on Android.
+ *
+ * By default, messages go to stderr. The app installs a sink that forwards them to
+ * android.util.Log, so on the device they show up in logcat as before.
+ */
+public final class SyncLog {
+    public static final int INFO = 0;
+    public static final int WARN = 1;
+    public static final int ERROR = 2;
+
+    public interface Sink {
+        void log(int level, String tag, String msg);
+    }
+
+    private static final Sink STDERR_SINK = new Sink() {
+        public void log(int level, String tag, String msg) {
+            String prefix = (level == ERROR) ? "E/" : (level == WARN) ? "W/" : "I/";
+            System.err.println(prefix + tag + ": " + msg);
+        }
+    };
+
+    private static volatile Sink sSink = STDERR_SINK;
+
+    private SyncLog() {}
+
+    public static void setSink(Sink sink) {
+        sSink = (sink != null) ? sink : STDERR_SINK;
+    }
+
+    public static void i(String tag, String msg) {
+        sSink.log(INFO, tag, msg);
+    }
+
+    public static void w(String tag, String msg) {
+        sSink.log(WARN, tag, msg);
+    }
+
+    public static void e(String tag, String msg) {
+        sSink.log(ERROR, tag, msg);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What a sync would do, as computed by SyncEngine.plan() without writing to the collection.
+ */
+public class SyncPlan {
+    // Rough size of a notes and a cards row, not counting the note's fields. Indexes included.
+    private static final int NOTE_ROW_BYTES = 120;
+    private static final int CARD_ROW_BYTES = 150;
+
+    public final List<Card> mNew = new ArrayList<Card>();      // In the order they'd be added.
+    public final List<Card> mChanged = new ArrayList<Card>();  // In the deck with another back.
+    public final List<String> mDuplicates = new ArrayList<String>();  // Fronts already present.
+    public final List<String> mMalformed = new ArrayList<String>();   // Error for each bad row.
+    public int mRead;
+    public int mAlreadySynced;  // Skipped because they are older than the incremental checkpoint.
+
+    public int mBatches;
+    public long mWriteBytes;
+    public long mEstimatedNanos = -1;  // -1 if there is no throughput measurement to go on.
+    public long mPlanNanos;
+
+    /**
+     * Estimates how much a sync would write and how long it would take.
+     * @param measured the statistics of a previous sync to the same store, or null if there
+     *     are none. The time per card of its batches is assumed to stay the same.
+     */
+    void estimate(int batchSize, SyncStats measured) {
+        mBatches = (mNew.size() + batchSize - 1) / batchSize;
+        mWriteBytes = 0;
+        for (Card card : mNew) {
+            mWriteBytes += NOTE_ROW_BYTES + CARD_ROW_BYTES +
+                    utf8Length(card.mFront) + utf8Length(card.mBack);
+        }
+        if (measured != null && measured.mBatches > 0 && measured.mAdded > 0) {
+            double nanosPerBatch = (double) measured.mWriteNanos / measured.mBatches;
+            double cardsPerBatch = (double) measured.mAdded / measured.mBatches;
+            mEstimatedNanos = (long) (mNew.size() * nanosPerBatch / cardsPerBatch);
+        } else {
+            mEstimatedNanos = -1;
+        }
+    }
+
+    private static int utf8Length(String s) {
+        try {
+            return s.getBytes("UTF-8").length;
+        } catch (UnsupportedEncodingException e) {
+            return s.length() * 3;
+        }
+    }
+
+    /**
+     * Returns the summary followed by the entries of each kind, at most maxItems of each.
+     */
+    public String describe(int maxItems) {
+        StringBuilder sb = new StringBuilder(toString());
+        List<String> newFronts = new ArrayList<String>();
+        for (Card card : mNew) {
+            newFronts.add(card.mFront);
+        }
+        List<String> changedFronts = new ArrayList<String>();
+        for (Card card : mChanged) {
+            changedFronts.add(card.mFront);
+        }
+        appendList(sb, "New", newFronts, " ", maxItems);
+        appendList(sb, "Changed", changedFronts, " ", maxItems);
+        appendList(sb, "Duplicates", mDuplicates, " ", maxItems);
+        appendList(sb, "Malformed", mMalformed, "\n  ", maxItems);
+        return sb.toString();
+    }
+
+    private static void appendList(StringBuilder sb, String title, List<String> items,
+            String separator, int maxItems) {
+        if (items.isEmpty()) {
+            return;
+        }
+        sb.append("\n").append(title).append(" (").append(items.size()).append("):");
+        int count = Math.min(items.size(), maxItems);
+        for (int i = 0; i < count; i++) {
+            sb.append(separator).append(items.get(i));
+        }
+        if (count < items.size()) {
+            sb.append(separator).append("...");
+        }
+    }
+
+    public String toString() {
+        String duration = (mEstimatedNanos >= 0) ?
+                (mEstimatedNanos / 1000000) + "ms" : "unknown (no previous sync)";
+        return String.format(
+                "read=%d new=%d changed=%d duplicates=%d malformed=%d already-synced=%d " +
+                "batches=%d write=%dKB estimated=%s planned in %dms",
+                mRead, mNew.size(), mChanged.size(), mDuplicates.size(), mMalformed.size(),
+                mAlreadySynced, mBatches, (mWriteBytes + 1023) / 1024, duration,
+                mPlanNanos / 1000000);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import android.content.SharedPreferences;
+
+/**
+ * The app's settings, and how they map onto a SyncEngine.
+ */
+final class SyncPreferences {
+    static final String PREF_IMPORT_FILE = "import_file";
+    static final String PREF_EXPORT_FILE = "export_file";
+    static final String PREF_EXPORT_DECK = "export_deck";
+    static final String PREF_AUTO_SYNC = "auto_sync";
+    static final String PREF_STROKE_ARCHIVE = "stroke_archive";
+
+    // Not user-visible: the newest timestamp synced from PREF_CHECKPOINT_FILE.
+    private static final String PREF_CHECKPOINT = "checkpoint";
+    private static final String PREF_CHECKPOINT_FILE = "checkpoint_file";
+    // Not user-visible: the ImportSession of the last sync that added cards, for undoing it.
+    private static final String PREF_LAST_SESSION = "last_session";
+    // Not user-visible: how fast the last sync wrote, for estimating how long the next one takes.
+    private static final String PREF_WRITE_NANOS = "write_nanos";
+    private static final String PREF_WRITE_CARDS = "write_cards";
+    private static final String PREF_WRITE_BATCHES = "write_batches";
+
+    private SyncPreferences() {}
+
+    /**
+     * Creates a SyncEngine that syncs into AnkiDroid's collection as configured by the user.
+     * @param incremental whether to skip the entries that were synced last time.
+     */
+    static SyncEngine newEngine(SharedPreferences settings, boolean incremental) {
+        SyncEngine engine = new SyncEngine(new AnkiDroidSyncer());
+        // Cheap enough to do every time: a couple of aggregate queries.
+        engine.setVerify(true);
+        String importFile = settings.getString(PREF_IMPORT_FILE, "");
+        engine.setImportFile(importFile);
+        engine.setCollectionFile(settings.getString(PREF_EXPORT_FILE, ""));
+        engine.setDeckName(settings.getString(PREF_EXPORT_DECK, ""));
+        String strokeArchive = settings.getString(PREF_STROKE_ARCHIVE, "");
+        if (strokeArchive.length() > 0) {
+            engine.setStrokeOrderArchive(strokeArchive);
+        }
+        if (incremental && importFile.equals(settings.getString(PREF_CHECKPOINT_FILE, ""))) {
+            engine.setMinTimestamp(settings.getLong(PREF_CHECKPOINT, -1));
+        }
+        return engine;
+    }
+
+    /**
+     * Records how far a completed sync got, for the next incremental sync.
+     */
+    static void saveCheckpoint(SharedPreferences settings, SyncStats stats) {
+        if (stats.mCancelled) {
+            return;
+        }
+        String importFile = settings.getString(PREF_IMPORT_FILE, "");
+        long checkpoint = -1;
+        if (importFile.equals(settings.getString(PREF_CHECKPOINT_FILE, ""))) {
+            checkpoint = settings.getLong(PREF_CHECKPOINT, -1);
+        }
+        settings.edit()
+                .putString(PREF_CHECKPOINT_FILE, importFile)
+                .putLong(PREF_CHECKPOINT, Math.max(checkpoint, stats.mMaxTimestamp))
+                .apply();
+    }
+
+    /**
+     * Records the session of the specified sync, if it added any cards, so that it can be undone.
+     */
+    static void saveSession(SharedPreferences settings, SyncStats stats) {
+        if (stats.mSession == null || stats.mSession.isEmpty()) {
+            return;
+        }
+        settings.edit().putString(PREF_LAST_SESSION, stats.mSession.toString()).apply();
+    }
+
+    /**
+     * Returns the session saved by saveSession(), or null if there is none.
+     */
+    static ImportSession loadSession(SharedPreferences settings) {
+        String session = settings.getString(PREF_LAST_SESSION, "");
+        try {
+            return (session.length() > 0) ? ImportSession.parse(session) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Forgets the last session, and the checkpoint, since the entries it synced are no longer in
+     * the deck and the next incremental sync must consider them again.
+     */
+    static void clearSession(SharedPreferences settings) {
+        settings.edit()
+                .remove(PREF_LAST_SESSION)
+                .remove(PREF_CHECKPOINT)
+                .remove(PREF_CHECKPOINT_FILE)
+                .apply();
+    }
+
+    /**
+     * Records how fast the specified sync added cards, if it added any.
+     */
+    static void saveThroughput(SharedPreferences settings, SyncStats stats) {
+        if (stats.mAdded == 0 || stats.mBatches == 0) {
+            return;
+        }
+        settings.edit()
+                .putLong(PREF_WRITE_NANOS, stats.mWriteNanos)
+                .putInt(PREF_WRITE_CARDS, stats.mAdded)
+                .putInt(PREF_WRITE_BATCHES, stats.mBatches)
+                .apply();
+    }
+
+    /**
+     * Returns the throughput recorded by saveThroughput(), or null if there is none.
+     */
+    static SyncStats loadThroughput(SharedPreferences settings) {
+        if (!settings.contains(PREF_WRITE_BATCHES)) {
+            return null;
+        }
+        SyncStats stats = new SyncStats();
+        stats.mWriteNanos = settings.getLong(PREF_WRITE_NANOS, 0);
+        stats.mAdded = settings.getInt(PREF_WRITE_CARDS, 0);
+        stats.mBatches = settings.getInt(PREF_WRITE_BATCHES, 0);
+        return stats;
+    }
+}
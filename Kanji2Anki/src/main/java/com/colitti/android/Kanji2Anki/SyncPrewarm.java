@@ -0,0 +1,204 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Does the read-only part of a sync in the background, so that a sync started later can begin
+ * adding cards straight away: opens the collection read-only, parses the deck and model
+ * configuration, checks the import file and loads the fronts of the deck.
+ *
+ * The results are only used if the sync has the same settings and neither the import file nor
+ * the collection has changed since they were loaded. Otherwise the sync just does the work itself.
+ * Each prewarm can be used by at most one sync, because syncing changes the deck. Dry runs (see
+ * SyncEngine.plan()) don't change it, so they can use a prewarm before the sync does.
+ */
+public class SyncPrewarm {
+    private static final String TAG = "SyncPrewarm";
+
+    /** What a sync needs before it can start adding cards. */
+    static class Snapshot {
+        ImportFormat mFormat;
+        Map<String,Deck> mDecks;
+        String mModelID;
+        int mDeckSize;
+        Set<String> mFronts;  // Normalized. Null if the deck is large enough to use the merge join.
+        Map<String,Card> mCards;  // By normalized front, for plan(). Null when mFronts is.
+    }
+
+    private final CollectionStore mStore;
+    private final String mImportFile;
+    private final String mCollectionFile;
+    private final String mDeckName;
+    private final String mModelID;
+    private final int mMergeJoinThreshold;
+    private final Thread mThread;
+
+    private volatile boolean mCancelled;
+    private Snapshot mSnapshot;
+    private String mStamp;
+    private boolean mTaken;
+
+    /**
+     * @param store the store to read from. Must not be the one the sync uses, unless the store
+     *     is thread-safe and open() does nothing (e.g., InMemoryCollectionStore).
+     */
+    SyncPrewarm(CollectionStore store, String importFile, String collectionFile, String deckName,
+            String modelID, int mergeJoinThreshold) {
+        mStore = store;
+        mImportFile = importFile;
+        mCollectionFile = collectionFile;
+        mDeckName = deckName;
+        mModelID = modelID;
+        mMergeJoinThreshold = mergeJoinThreshold;
+        mThread = new Thread(new Runnable() {
+            public void run() {
+                load();
+            }
+        }, TAG);
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.setDaemon(true);
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * Stops loading as soon as possible and discards the results.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Waits for loading to finish.
+     */
+    public void await() throws InterruptedException {
+        mThread.join();
+    }
+
+    /**
+     * Identifies the current contents of the files the snapshot depends on. The collection's
+     * write-ahead log is included because writes may not touch the database file until the next
+     * checkpoint.
+     */
+    private String getStamp() {
+        StringBuilder stamp = new StringBuilder();
+        for (String filename : new String[] {
+                mImportFile, mCollectionFile, mCollectionFile + "-wal"}) {
+            File file = new File(filename);
+            stamp.append(file.length()).append('@').append(file.lastModified()).append(' ');
+        }
+        return stamp.toString();
+    }
+
+    private void load() {
+        long start = System.nanoTime();
+        String stamp = getStamp();
+        Snapshot snapshot = new Snapshot();
+
+        KanjiRecognizerImporter importer = new KanjiRecognizerImporter(mImportFile);
+        if (!importer.fileLooksValid() || mCancelled) {
+            return;
+        }
+        snapshot.mFormat = importer.getFormat();
+
+        try {
+            mStore.openReadOnly(mCollectionFile);
+        } catch (CollectionException e) {
+            SyncLog.w(TAG, e.getMessage());
+            return;
+        }
+        try {
+            snapshot.mDecks = mStore.getDecks();
+            snapshot.mModelID = (mModelID != null) ? mModelID : mStore.getDefaultModelID();
+            Deck deck = snapshot.mDecks.get(mDeckName);
+            if (deck == null || mCancelled) {
+                return;
+            }
+            snapshot.mDeckSize = mStore.countCards(deck.getID());
+            if (snapshot.mDeckSize <= mMergeJoinThreshold && !mCancelled) {
+                // Normalizing here also loads FrontNormalizer's table off the sync's path. The sync
+                // adds to mFronts, so it gets its own copy of the keys.
+                snapshot.mCards = SyncEngine.byNormalizedFront(mStore.getCards(deck.getID()));
+                snapshot.mFronts = new HashSet<String>(snapshot.mCards.keySet());
+            }
+        } catch (JSONException e) {
+            SyncLog.w(TAG, "Can't parse collection configuration: " + e.getMessage());
+            return;
+        } catch (RuntimeException e) {
+            SyncLog.w(TAG, "Can't read collection: " + e);
+            return;
+        } finally {
+            mStore.close();
+        }
+
+        if (mCancelled) {
+            return;
+        }
+        synchronized (this) {
+            mSnapshot = snapshot;
+            mStamp = stamp;
+        }
+        SyncLog.i(TAG, "Prewarm done in " + (System.nanoTime() - start) / 1000000 + "ms");
+    }
+
+    /**
+     * Returns the results for a sync with the specified settings, waiting for loading to finish
+     * if necessary, or null if they can't be used.
+     */
+    Snapshot take(String importFile, String collectionFile, String deckName, String modelID,
+            int mergeJoinThreshold) {
+        return get(importFile, collectionFile, deckName, modelID, mergeJoinThreshold, true);
+    }
+
+    /**
+     * Like take(), but leaves the results for a sync. Callers must not modify them.
+     */
+    Snapshot peek(String importFile, String collectionFile, String deckName, String modelID,
+            int mergeJoinThreshold) {
+        return get(importFile, collectionFile, deckName, modelID, mergeJoinThreshold, false);
+    }
+
+    private Snapshot get(String importFile, String collectionFile, String deckName,
+            String modelID, int mergeJoinThreshold, boolean take) {
+        if (mCancelled) {
+            return null;
+        }
+        try {
+            await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        synchronized (this) {
+            if (mSnapshot == null || mTaken) {
+                return null;
+            }
+            mTaken = take;
+            if (!mImportFile.equals(importFile) || !mCollectionFile.equals(collectionFile) ||
+                    !mDeckName.equals(deckName) ||
+                    (mModelID == null ? modelID != null : !mModelID.equals(modelID)) ||
+                    mMergeJoinThreshold != mergeJoinThreshold) {
+                SyncLog.i(TAG, "Settings changed, not using prewarm");
+                return null;
+            }
+            if (!mStamp.equals(getStamp())) {
+                SyncLog.i(TAG, "Files changed, not using prewarm");
+                return null;
+            }
+            return mSnapshot;
+        }
+    }
+}
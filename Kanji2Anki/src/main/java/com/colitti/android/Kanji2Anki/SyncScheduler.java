@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a sync job in response to file changes.
+ *
+ * Bursts of triggers are debounced: the job runs once the triggers have stopped for the debounce
+ * interval. Runs are coalesced: at most one job runs at a time, and any number of requests that
+ * arrive while it is running result in a single further run.
+ */
+public class SyncScheduler {
+    private static final String TAG = "SyncScheduler";
+
+    private final Runnable mJob;
+    private final long mDebounceMillis;
+    private final ScheduledExecutorService mTimer = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService mWorker = Executors.newSingleThreadExecutor();
+
+    // Protected by this.
+    private ScheduledFuture<?> mPending;
+    private boolean mRunning;
+    private boolean mQueued;
+    private boolean mShutdown;
+
+    /** Runs the job once the debounce interval has passed, unless it was cancelled since. */
+    private class DebounceTimer implements Runnable {
+        ScheduledFuture<?> mFuture;  // Protected by SyncScheduler.this.
+
+        public void run() {
+            synchronized (SyncScheduler.this) {
+                // cancel() can't stop a timer that has already fired, so check that this is
+                // still the pending one.
+                if (mPending != mFuture) {
+                    return;
+                }
+                mPending = null;
+                start();
+            }
+        }
+    }
+
+    private final Runnable mRunner = new Runnable() {
+        public void run() {
+            while (true) {
+                try {
+                    mJob.run();
+                } catch (RuntimeException e) {
+                    SyncLog.e(TAG, "Sync failed: " + e);
+                } catch (Error e) {
+                    SyncLog.e(TAG, "Sync failed: " + e);
+                    // Don't leave a run in progress, or no run would ever start again.
+                    synchronized (SyncScheduler.this) {
+                        mRunning = false;
+                        mQueued = false;
+                    }
+                    throw e;
+                }
+                synchronized (SyncScheduler.this) {
+                    if (!mQueued) {
+                        mRunning = false;
+                        return;
+                    }
+                    mQueued = false;
+                }
+            }
+        }
+    };
+
+    public SyncScheduler(Runnable job, long debounceMillis) {
+        mJob = job;
+        mDebounceMillis = debounceMillis;
+    }
+
+    /**
+     * Requests a run once no further triggers have arrived for the debounce interval.
+     */
+    public synchronized void trigger() {
+        if (mShutdown) {
+            return;
+        }
+        if (mPending != null) {
+            mPending.cancel(false);
+        }
+        DebounceTimer timer = new DebounceTimer();
+        timer.mFuture = mTimer.schedule(timer, mDebounceMillis, TimeUnit.MILLISECONDS);
+        mPending = timer.mFuture;
+    }
+
+    /**
+     * Requests a run as soon as possible, without debouncing. Cancels any run requested by
+     * trigger(), since this one covers it.
+     */
+    public synchronized void runNow() {
+        if (mPending != null) {
+            mPending.cancel(false);
+            mPending = null;
+        }
+        start();
+    }
+
+    private void start() {
+        if (mShutdown) {
+            return;
+        }
+        if (mRunning) {
+            mQueued = true;
+            return;
+        }
+        mRunning = true;
+        mWorker.execute(mRunner);
+    }
+
+    /**
+     * Stops scheduling runs. A run in progress is allowed to finish.
+     */
+    public synchronized void shutdown() {
+        if (mPending != null) {
+            mPending.cancel(false);
+        }
+        mQueued = false;
+        mShutdown = true;
+        mTimer.shutdown();
+        mWorker.shutdown();
+    }
+}
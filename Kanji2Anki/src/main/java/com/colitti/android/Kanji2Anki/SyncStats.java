@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+/**
+ * What a sync did, and how long it took.
+ */
+public class SyncStats {
+    public int mRead;          // Entries read from the import file.
+    public int mAdded;         // Cards added to the deck.
+    public int mSkipped;       // Entries already in the deck.
+    public int mBatches;       // Transactions used to add the cards.
+    public int mMediaFiles;    // Stroke order diagrams copied into the media directory.
+    public boolean mCancelled;
+    public long mMaxTimestamp = -1;  // Newest Kanji.getTimestamp() seen, for incremental syncs.
+    public ImportSession mSession;   // Identifies the cards added, for CollectionStore.rollback().
+    public IntegrityReport mIntegrity;  // The state of the deck afterwards, if verified.
+
+    public long mReadNanos;    // Time spent reading the import file.
+    public long mWriteNanos;   // Time spent adding cards.
+    public long mTotalNanos;
+    public long mStartupNanos; // Time from starting the sync to adding the first card.
+
+    private static double perSecond(int count, long nanos) {
+        return nanos > 0 ? count * 1e9 / nanos : 0;
+    }
+
+    public double getReadRate() {
+        return perSecond(mRead, mReadNanos);
+    }
+
+    public double getWriteRate() {
+        return perSecond(mAdded, mWriteNanos);
+    }
+
+    public double getTotalRate() {
+        return perSecond(mRead, mTotalNanos);
+    }
+
+    public void add(SyncStats other) {
+        mRead += other.mRead;
+        mAdded += other.mAdded;
+        mSkipped += other.mSkipped;
+        mBatches += other.mBatches;
+        mMediaFiles += other.mMediaFiles;
+        mCancelled |= other.mCancelled;
+        mMaxTimestamp = Math.max(mMaxTimestamp, other.mMaxTimestamp);
+        mReadNanos += other.mReadNanos;
+        mWriteNanos += other.mWriteNanos;
+        mTotalNanos += other.mTotalNanos;
+        mStartupNanos = Math.max(mStartupNanos, other.mStartupNanos);
+    }
+
+    public String toString() {
+        return String.format(
+                "read=%d added=%d skipped=%d batches=%d media=%d time=%dms startup=%dms " +
+                "(read %.0f/s, write %.0f/s, overall %.0f/s)%s",
+                mRead, mAdded, mSkipped, mBatches, mMediaFiles, mTotalNanos / 1000000,
+                mStartupNanos / 1000000,
+                getReadRate(), getWriteRate(), getTotalRate(), mCancelled ? " cancelled" : "");
+    }
+}
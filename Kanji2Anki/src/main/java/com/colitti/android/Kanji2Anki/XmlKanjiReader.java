@@ -0,0 +1,176 @@
+/*
+ * Copyright 2013 Lorenzo Colitti.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2.
+ */
+package com.colitti.android.Kanji2Anki;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads KANJIDIC2 and JMdict files one entry at a time using a pull parser, so only the entry
+ * being read is ever held in memory.
+ *
+ * KANJIDIC2 <character> elements give the kanji (literal), its on and kun readings and its
+ * English meanings. JMdict <entry> elements give the word (the first keb, or the first reb for
+ * kana-only words), all its kana readings and its English glosses.
+ *
+ * JMdict uses entities declared in its internal DTD subset in nearly every entry, e.g.,
+ * <pos>&n;</pos>. Android's parser reads those declarations, but kxml2 on the desktop doesn't
+ * and fails on the first one, so we define them ourselves before reading any entries.
+ */
+public class XmlKanjiReader implements KanjiReader {
+    // General entity declarations with a literal value. Parameter entities are not used.
+    private static final Pattern ENTITY_DECLARATION =
+            Pattern.compile("<!ENTITY\\s+([^\\s%]+)\\s+(?:\"([^\"]*)\"|'([^']*)')\\s*>");
+
+    private final InputStream mIn;
+    private final XmlPullParser mParser;
+    private final boolean mJMdict;
+
+    public XmlKanjiReader(InputStream in, ImportFormat format) throws IOException {
+        if (format != ImportFormat.KANJIDIC2 && format != ImportFormat.JMDICT) {
+            throw new IllegalArgumentException("Not an XML format: " + format);
+        }
+        mIn = in;
+        mJMdict = (format == ImportFormat.JMDICT);
+        try {
+            mParser = XmlPullParserFactory.newInstance().newPullParser();
+            mParser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+            mParser.setInput(in, null);
+        } catch (XmlPullParserException e) {
+            throw new IOException("Can't create XML parser: " + e.getMessage());
+        }
+        try {
+            readPrologue();
+        } catch (XmlPullParserException e) {
+            throw new IOException("Line " + mParser.getLineNumber() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads up to the root element, defining the entities declared in the DOCTYPE, if any.
+     */
+    private void readPrologue() throws XmlPullParserException, IOException {
+        int event;
+        while ((event = mParser.nextToken()) != XmlPullParser.START_TAG &&
+                event != XmlPullParser.END_DOCUMENT) {
+            if (event != XmlPullParser.DOCDECL) {
+                continue;
+            }
+            Matcher m = ENTITY_DECLARATION.matcher(mParser.getText());
+            while (m.find()) {
+                String value = (m.group(2) != null) ? m.group(2) : m.group(3);
+                mParser.defineEntityReplacementText(m.group(1), value);
+            }
+        }
+    }
+
+    private static void append(StringBuilder s, String separator, String text) {
+        text = text.trim();
+        if (text.length() == 0) {
+            return;
+        }
+        if (s.length() > 0) {
+            s.append(separator);
+        }
+        s.append(text);
+    }
+
+    /**
+     * Parses the element the parser is positioned on, up to and including its end tag.
+     */
+    private Kanji parseEntry() throws XmlPullParserException, IOException {
+        int line = mParser.getLineNumber();
+        int depth = mParser.getDepth();
+        String kanji = null;
+        String firstReading = null;
+        StringBuilder readings = new StringBuilder();
+        StringBuilder meanings = new StringBuilder();
+
+        int event;
+        while ((event = mParser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.END_TAG && mParser.getDepth() == depth) {
+                break;
+            }
+            if (event != XmlPullParser.START_TAG) {
+                continue;
+            }
+            String name = mParser.getName();
+            if (mJMdict) {
+                if (name.equals("keb")) {
+                    String keb = mParser.nextText().trim();
+                    if (kanji == null) {
+                        kanji = keb;
+                    }
+                } else if (name.equals("reb")) {
+                    String reb = mParser.nextText().trim();
+                    if (firstReading == null) {
+                        firstReading = reb;
+                    }
+                    append(readings, " ", reb);
+                } else if (name.equals("gloss")) {
+                    String lang = mParser.getAttributeValue(null, "xml:lang");
+                    String gloss = mParser.nextText();
+                    if (lang == null || lang.equals("eng")) {
+                        append(meanings, "; ", gloss);
+                    }
+                }
+            } else {
+                if (name.equals("literal")) {
+                    kanji = mParser.nextText().trim();
+                } else if (name.equals("reading")) {
+                    String type = mParser.getAttributeValue(null, "r_type");
+                    String reading = mParser.nextText();
+                    if ("ja_on".equals(type) || "ja_kun".equals(type)) {
+                        append(readings, " ", reading);
+                    }
+                } else if (name.equals("meaning")) {
+                    String lang = mParser.getAttributeValue(null, "m_lang");
+                    String meaning = mParser.nextText();
+                    if (lang == null || lang.equals("en")) {
+                        append(meanings, ", ", meaning);
+                    }
+                }
+            }
+        }
+
+        if (kanji == null) {
+            kanji = firstReading;
+        }
+        if (kanji == null || kanji.length() == 0) {
+            throw new MalformedRowException(line, "Entry without a kanji");
+        }
+        return new Kanji(kanji, readings.toString(), meanings.toString());
+    }
+
+    @Override
+    public Kanji next() throws IOException {
+        String entryTag = mJMdict ? "entry" : "character";
+        try {
+            int event;
+            while ((event = mParser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (event == XmlPullParser.START_TAG && mParser.getName().equals(entryTag)) {
+                    return parseEntry();
+                }
+            }
+        } catch (XmlPullParserException e) {
+            // The parser can't recover from syntax errors, so this is not a MalformedRowException.
+            throw new IOException("Line " + mParser.getLineNumber() + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+}